@@ -0,0 +1,119 @@
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the connections of the notes database of the app, as the provider opens it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotesDatabaseConnectionTest {
+    private static final String WRITE_BURST_SNIPPET = "write burst";
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mHelper = NotesDatabaseHelper.getInstance(InstrumentationRegistry.getInstrumentation()
+                .getTargetContext());
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    private int queryRootNotesList() {
+        Cursor c = mDb.query(TABLE.NOTE, new String[] { NoteColumns.ID, NoteColumns.SNIPPET },
+                NotesProvider.getFolderSelection(Notes.ID_ROOT_FOLDER) + " AND "
+                        + NoteColumns.SNIPPET + "=?", new String[] { WRITE_BURST_SNIPPET },
+                null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void notesListIsReadDuringWriteBurst() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDb.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                    values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+                    values.put(NoteColumns.SNIPPET, WRITE_BURST_SNIPPET);
+                    for (int i = 0; i < 500; i++) {
+                        mDb.insert(TABLE.NOTE, null, values);
+                    }
+                    writing.countDown();
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // rolled back, the burst leaves nothing behind
+                    mDb.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        try {
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            // the writer holds its transaction open, the list is read from the WAL snapshot
+            long start = System.nanoTime();
+            assertEquals(0, queryRootNotesList());
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("list query took " + elapsedMs + "ms", elapsedMs < 1000);
+            assertTrue(writer.isAlive());
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+        assertEquals(0, queryRootNotesList());
+    }
+
+    private String queryPragma(String name) {
+        return DatabaseUtils.stringForQuery(mDb, "PRAGMA " + name, null);
+    }
+
+    @Test
+    public void primaryConnectionUsesPerformanceProfile() {
+        NotesDatabaseHelper.PerformanceProfile profile = mHelper.getPerformanceProfile();
+        // queries inside a transaction run on the primary connection, which onConfigure set up
+        mDb.beginTransactionNonExclusive();
+        try {
+            assertEquals("wal", queryPragma("journal_mode").toLowerCase());
+            // NORMAL
+            assertEquals("1", queryPragma("synchronous"));
+            assertEquals(String.valueOf(profile.cacheSize), queryPragma("cache_size"));
+            assertEquals(String.valueOf(profile.tempStore), queryPragma("temp_store"));
+            // the sqlite build may cap the size of the mapping
+            long mmapSize = Long.parseLong(queryPragma("mmap_size"));
+            assertTrue(mmapSize <= profile.mmapSize);
+            if (profile.mmapSize == 0) {
+                assertEquals(0, mmapSize);
+            }
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.MetaColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.ui.AlarmInitReceiver;
+import net.micode.notes.ui.NotesListActivity;
+import net.micode.notes.widget.NoteWidgetProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the schema of a freshly created notes database in memory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotesDatabaseHelperTest {
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDb = SQLiteDatabase.create(null);
+        mHelper = new NotesDatabaseHelper(appContext);
+        mHelper.onCreate(mDb);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private String explainQueryPlan(String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * @return whether the plan reads the whole note table instead of searching an index
+     */
+    private static boolean scansNoteTable(String plan) {
+        for (String line : plan.split("\n")) {
+            if (line.matches("SCAN (TABLE )?note\\b.*") && !line.contains("INDEX")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void notesListUsesParentIdIndex() {
+        String plan = explainQueryPlan("SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET
+                + " FROM " + TABLE.NOTE
+                + " WHERE " + NotesProvider.getFolderSelection(1234)
+                + " ORDER BY " + NotesListActivity.NOTES_LIST_SORT_ORDER);
+        assertTrue(plan, plan.contains("note_parent_id_index"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void rootNotesListUsesParentIdIndex() {
+        // the root folder also lists the call record folder, the OR needs a sort
+        String plan = explainQueryPlan("SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET
+                + " FROM " + TABLE.NOTE
+                + " WHERE " + NotesProvider.getFolderSelection(Notes.ID_ROOT_FOLDER)
+                + " AND (" + NotesListActivity.ROOT_FOLDER_SELECTION + ")"
+                + " ORDER BY " + NotesListActivity.NOTES_LIST_SORT_ORDER,
+                String.valueOf(Notes.ID_ROOT_FOLDER));
+        assertTrue(plan, plan.contains("note_parent_id_index"));
+        assertFalse(plan, scansNoteTable(plan));
+    }
+
+    @Test
+    public void widgetInfoUsesWidgetIdIndex() {
+        String plan = explainQueryPlan("SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteCache.WIDGET_NOTE_SELECTION,
+                "1", String.valueOf(Notes.ID_TRASH_FOLER));
+        assertTrue(plan, plan.contains("COVERING INDEX note_widget_id_index"));
+    }
+
+    @Test
+    public void widgetDeleteUsesWidgetIdIndex() {
+        String plan = explainQueryPlan("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.WIDGET_ID
+                + "=? WHERE " + NoteWidgetProvider.WIDGET_SELECTION, "0", "1");
+        assertTrue(plan, plan.contains("note_widget_id_index"));
+    }
+
+    @Test
+    public void alarmsUseAlertDateIndex() {
+        String plan = explainQueryPlan("SELECT " + NoteColumns.ID + "," + NoteColumns.ALERTED_DATE
+                + " FROM " + TABLE.NOTE
+                + " WHERE " + AlarmInitReceiver.ALARM_SELECTION,
+                String.valueOf(System.currentTimeMillis()));
+        assertTrue(plan, plan.contains("COVERING INDEX note_alert_date_index"));
+    }
+
+    @Test
+    public void noteDataUsesNoteIdIndex() {
+        String plan = explainQueryPlan("SELECT " + DataColumns.CONTENT + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                "1", CallNote.CONTENT_ITEM_TYPE);
+        assertTrue(plan, plan.contains("data_note_id_mime_type_index"));
+    }
+
+    private void assertSearchReadsNotesByFtsHits(String pattern) {
+        List<String> args = new ArrayList<String>();
+        String query = NotesProvider.buildSearchQuery(pattern, args);
+        String plan = explainQueryPlan(query, args.toArray(new String[args.size()]));
+        assertTrue(plan, plan.contains("VIRTUAL TABLE"));
+        assertFalse(plan, scansNoteTable(plan));
+    }
+
+    @Test
+    public void wordSearchNeverScansNotes() {
+        assertSearchReadsNotesByFtsHits("budget review");
+    }
+
+    @Test
+    public void cjkTermsAmongWordsOnlyCheckFtsHits() {
+        assertSearchReadsNotesByFtsHits("budget 下午开会");
+    }
+
+    private long insertNote(long parentId, int type) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, parentId);
+        values.put(NoteColumns.TYPE, type);
+        return mDb.insert(TABLE.NOTE, null, values);
+    }
+
+    private int getNotesCount(long folderId) {
+        return (int) DatabaseUtils.longForQuery(mDb, "SELECT " + NoteColumns.NOTES_COUNT
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=?",
+                new String[] { String.valueOf(folderId) });
+    }
+
+    @Test
+    public void folderCountMatchesRecountAfterSuspendedBulkMove() {
+        long folderId = insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        for (int i = 0; i < 100; i++) {
+            insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_NOTE);
+        }
+        assertTrue(mHelper.checkFolderCount(mDb));
+
+        mDb.beginTransaction();
+        try {
+            mHelper.suspendFolderCount(mDb);
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.PARENT_ID, folderId);
+            mDb.update(TABLE.NOTE, values, NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null);
+            assertEquals(0, getNotesCount(folderId));
+            mHelper.resumeFolderCount(mDb);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertEquals(100, getNotesCount(folderId));
+        assertTrue(mHelper.checkFolderCount(mDb));
+
+        // triggers work again once counting is resumed
+        insertNote(folderId, Notes.TYPE_NOTE);
+        assertEquals(101, getNotesCount(folderId));
+        assertTrue(mHelper.checkFolderCount(mDb));
+    }
+
+    @Test
+    public void updateNoteBindsArgsAndBumpsVersionOnce() {
+        long folderId = insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            insertNote(folderId, Notes.TYPE_NOTE);
+        }
+        // an argument with a quote and a question mark would break a spliced statement
+        String snippet = "it's a ?";
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.SNIPPET, snippet);
+        long pinnedId = insertNote(folderId, Notes.TYPE_NOTE);
+        mDb.update(TABLE.NOTE, values, NoteColumns.ID + "=" + pinnedId, null);
+
+        values = new ContentValues();
+        values.put(NoteColumns.BG_COLOR_ID, 1);
+        assertEquals(n, NotesDatabaseHelper.updateNote(mDb, values, NoteColumns.PARENT_ID
+                + "=? AND " + NoteColumns.SNIPPET + "<>?",
+                new String[] { String.valueOf(folderId), snippet }));
+
+        // every updated note is bumped once, by the update itself
+        assertEquals(n, DatabaseUtils.queryNumEntries(mDb, TABLE.NOTE, NoteColumns.PARENT_ID
+                + "=" + folderId + " AND " + NoteColumns.VERSION + "=1 AND "
+                + NoteColumns.BG_COLOR_ID + "=1"));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT " + NoteColumns.VERSION
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=" + pinnedId, null));
+    }
+
+    private long countRows(String table) {
+        return DatabaseUtils.queryNumEntries(mDb, table);
+    }
+
+    @Test
+    public void noteFtsBackfillRunsInChunks() {
+        for (int i = 0; i < 1200; i++) {
+            insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_NOTE);
+        }
+        long notes = DatabaseUtils.queryNumEntries(mDb, TABLE.NOTE,
+                NoteColumns.TYPE + "=" + Notes.TYPE_NOTE);
+        // as after an upgrade, the index is empty but new notes are indexed by triggers
+        mDb.execSQL("DELETE FROM " + TABLE.NOTE_FTS);
+        mHelper.scheduleMigration(mDb, NotesDatabaseHelper.MIGRATION_NOTE_FTS);
+        insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_NOTE);
+        assertEquals(1, countRows(TABLE.NOTE_FTS));
+
+        // the progress of a finished chunk is kept, as if the app was killed after it
+        assertTrue(mHelper.runNextMigrationChunk(mDb));
+        long progress = DatabaseUtils.longForQuery(mDb, "SELECT " + MetaColumns.VALUE
+                + " FROM " + TABLE.META + " WHERE " + MetaColumns.KEY + "=?",
+                new String[] { "migration_" + NotesDatabaseHelper.MIGRATION_NOTE_FTS });
+        assertEquals(NotesDatabaseHelper.MIGRATION_CHUNK_SIZE,
+                DatabaseUtils.queryNumEntries(mDb, TABLE.NOTE, NoteColumns.ID + ">0 AND "
+                        + NoteColumns.ID + "<=" + progress));
+        assertEquals(NotesDatabaseHelper.MIGRATION_CHUNK_SIZE + 1, countRows(TABLE.NOTE_FTS));
+
+        // resumed after the finished chunk
+        mHelper.runPendingMigrations(mDb);
+
+        assertEquals(notes + 1, countRows(TABLE.NOTE_FTS));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, TABLE.META,
+                MetaColumns.KEY + " LIKE 'migration_%'"));
+    }
+
+    /**
+     * Tables and note triggers of a version 6 database, before preview, trashed date and
+     * compressed content
+     */
+    private static final String[] V6_SCHEMA_SQL = new String[] {
+        "CREATE TABLE note(_id INTEGER PRIMARY KEY, parent_id INTEGER NOT NULL DEFAULT 0,"
+                + " alert_date INTEGER NOT NULL DEFAULT 0,"
+                + " bg_color_id INTEGER NOT NULL DEFAULT 0,"
+                + " created_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000),"
+                + " has_attachment INTEGER NOT NULL DEFAULT 0,"
+                + " modified_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000),"
+                + " notes_count INTEGER NOT NULL DEFAULT 0, snippet TEXT NOT NULL DEFAULT '',"
+                + " type INTEGER NOT NULL DEFAULT 0, widget_id INTEGER NOT NULL DEFAULT 0,"
+                + " widget_type INTEGER NOT NULL DEFAULT -1, sync_id INTEGER NOT NULL DEFAULT 0,"
+                + " local_modified INTEGER NOT NULL DEFAULT 0,"
+                + " origin_parent_id INTEGER NOT NULL DEFAULT 0,"
+                + " gtask_id TEXT NOT NULL DEFAULT '', version INTEGER NOT NULL DEFAULT 0)",
+        "CREATE TABLE data(_id INTEGER PRIMARY KEY, mime_type TEXT NOT NULL,"
+                + " note_id INTEGER NOT NULL DEFAULT 0,"
+                + " created_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000),"
+                + " modified_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000),"
+                + " content TEXT NOT NULL DEFAULT '', data1 INTEGER, data2 INTEGER,"
+                + " data3 TEXT NOT NULL DEFAULT '', data4 TEXT NOT NULL DEFAULT '',"
+                + " data5 TEXT NOT NULL DEFAULT '')",
+        "CREATE TRIGGER delete_data_on_delete AFTER DELETE ON note"
+                + " BEGIN DELETE FROM data WHERE note_id=old._id; END",
+        "CREATE TRIGGER folder_delete_notes_on_delete AFTER DELETE ON note"
+                + " BEGIN DELETE FROM note WHERE parent_id=old._id; END",
+        "CREATE TRIGGER folder_move_notes_on_trash AFTER UPDATE ON note"
+                + " WHEN new.parent_id=" + Notes.ID_TRASH_FOLER
+                + " BEGIN UPDATE note SET parent_id=" + Notes.ID_TRASH_FOLER
+                + " WHERE parent_id=old._id; END",
+        "INSERT INTO note(_id, type) VALUES(" + Notes.ID_ROOT_FOLDER + "," + Notes.TYPE_SYSTEM
+                + ")",
+        "INSERT INTO note(_id, type) VALUES(" + Notes.ID_CALL_RECORD_FOLDER + ","
+                + Notes.TYPE_SYSTEM + ")",
+        "INSERT INTO note(_id, type) VALUES(" + Notes.ID_TRASH_FOLER + "," + Notes.TYPE_SYSTEM
+                + ")",
+    };
+
+    private static Set<String> queryTriggers(SQLiteDatabase db) {
+        Set<String> triggers = new HashSet<String>();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='trigger'", null);
+        try {
+            while (c.moveToNext()) {
+                triggers.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return triggers;
+    }
+
+    @Test
+    public void upgradeFromV6ResumesMigrations() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            for (String sql : V6_SCHEMA_SQL) {
+                db.execSQL(sql);
+            }
+            // v5 and v6 left their backfills pending
+            mHelper.createNoteFtsTable(db);
+            mHelper.scheduleMigration(db, NotesDatabaseHelper.MIGRATION_NOTE_FTS);
+            mHelper.scheduleMigration(db, NotesDatabaseHelper.MIGRATION_INDEXES);
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+            values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+            values.put(NoteColumns.SNIPPET, "  upgraded note");
+            int notes = NotesDatabaseHelper.MIGRATION_CHUNK_SIZE * 2 + 1;
+            for (int i = 0; i < notes; i++) {
+                db.insert(TABLE.NOTE, null, values);
+            }
+            // as notes written before v5
+            db.execSQL("DELETE FROM " + TABLE.NOTE_FTS);
+
+            mHelper.onUpgrade(db, 6, NotesDatabaseHelper.DB_VERSION);
+            // the upgrade ends up with the triggers of a new database
+            assertEquals(queryTriggers(mDb), queryTriggers(db));
+
+            // one chunk, as if the app was killed after it, then resumed
+            assertTrue(mHelper.runNextMigrationChunk(db));
+            mHelper.runPendingMigrations(db);
+
+            assertEquals(notes, DatabaseUtils.queryNumEntries(db, TABLE.NOTE,
+                    NoteColumns.PREVIEW + "='upgraded note'"));
+            assertEquals(notes, DatabaseUtils.queryNumEntries(db, TABLE.NOTE_FTS));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, TABLE.META,
+                    MetaColumns.KEY + " LIKE 'migration_%'"));
+
+            // the trashed date trigger works on the upgraded table
+            values = new ContentValues();
+            values.put(NoteColumns.PARENT_ID, Notes.ID_TRASH_FOLER);
+            db.update(TABLE.NOTE, values, NoteColumns.ID + "=(SELECT MAX(" + NoteColumns.ID
+                    + ") FROM " + TABLE.NOTE + ")", null);
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, TABLE.NOTE,
+                    NoteColumns.TRASHED_DATE + ">0"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void largeContentIsCompressedByBackfill() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= DataContentCodec.COMPRESS_THRESHOLD) {
+            content.append("line of a long pasted log\n");
+        }
+        content.append("lasttoken");
+        long noteId = insertNote(Notes.ID_ROOT_FOLDER, Notes.TYPE_NOTE);
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, DataConstants.NOTE);
+        values.put(DataColumns.CONTENT, content.toString());
+        long dataId = mDb.insert(TABLE.DATA, null, values);
+
+        mHelper.scheduleMigration(mDb, NotesDatabaseHelper.MIGRATION_COMPRESS_CONTENT);
+        mHelper.runPendingMigrations(mDb);
+
+        Cursor c = mDb.query(TABLE.DATA, new String[] {
+                DataColumns.CONTENT, DataColumns.CONTENT_CODEC, DataColumns.COMPRESSED_CONTENT
+        }, DataColumns.ID + "=" + dataId, null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(DataContentCodec.CODEC_DEFLATE, c.getInt(1));
+            assertEquals(DataContentCodec.PLAIN_PREFIX_LENGTH, c.getString(0).length());
+            assertEquals(content.toString(), DataContentCodec.decode(c, 0, 1, 2));
+        } finally {
+            c.close();
+        }
+        // the text after the plain prefix stays searchable
+        assertEquals(noteId, DatabaseUtils.longForQuery(mDb, "SELECT docid FROM "
+                + TABLE.NOTE_FTS + " WHERE " + TABLE.NOTE_FTS + " MATCH ?",
+                new String[] { "lasttoken" }));
+    }
+}
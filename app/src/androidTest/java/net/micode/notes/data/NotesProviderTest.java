@@ -0,0 +1,223 @@
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries and observes the folder uris of the system folders, and searches notes, through the
+ * real provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotesProviderTest {
+    private ContentResolver mResolver;
+
+    private final ArrayList<Long> mNoteIds = new ArrayList<Long>();
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        for (long noteId : mNoteIds) {
+            mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null,
+                    null);
+        }
+    }
+
+    private long insertNote(long parentId) {
+        return insertNote(parentId, null);
+    }
+
+    private long insertNote(long parentId, String snippet) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, parentId);
+        if (snippet != null) {
+            values.put(NoteColumns.SNIPPET, snippet);
+        }
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        long noteId = ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+        mNoteIds.add(noteId);
+        return noteId;
+    }
+
+    private static class LatchObserver extends ContentObserver {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+
+        LatchObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mLatch.countDown();
+        }
+    }
+
+    private void assertFolderListsNewNote(long folderId) throws InterruptedException {
+        Uri folderUri = ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, folderId);
+        LatchObserver observer = new LatchObserver();
+        mResolver.registerContentObserver(folderUri, true, observer);
+        long noteId;
+        try {
+            noteId = insertNote(folderId);
+            assertTrue(observer.mLatch.await(5, TimeUnit.SECONDS));
+        } finally {
+            mResolver.unregisterContentObserver(observer);
+        }
+
+        Cursor c = mResolver.query(folderUri, new String[] { NoteColumns.ID },
+                NoteColumns.ID + "=?", new String[] { String.valueOf(noteId) }, null);
+        assertNotNull(c);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void callRecordFolderIsQueriedAndObserved() throws InterruptedException {
+        assertFolderListsNewNote(Notes.ID_CALL_RECORD_FOLDER);
+    }
+
+    @Test
+    public void trashFolderIsQueriedAndObserved() throws InterruptedException {
+        assertFolderListsNewNote(Notes.ID_TRASH_FOLER);
+    }
+
+    @Test
+    public void rootFolderListsCallRecordFolderWithNotes() {
+        insertNote(Notes.ID_CALL_RECORD_FOLDER);
+        Cursor c = mResolver.query(
+                ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, Notes.ID_ROOT_FOLDER),
+                new String[] { NoteColumns.ID },
+                NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
+                        + NoteColumns.NOTES_COUNT + ">0", null, null);
+        assertNotNull(c);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertSearchFinds(String pattern, long noteId) {
+        Uri uri = Uri.parse("content://" + Notes.AUTHORITY + "/search").buildUpon()
+                .appendQueryParameter("pattern", pattern).build();
+        Cursor c = mResolver.query(uri, null, null, null, null);
+        assertNotNull(c);
+        try {
+            int idColumn = c.getColumnIndexOrThrow(NoteColumns.ID);
+            while (c.moveToNext()) {
+                if (c.getLong(idColumn) == noteId) {
+                    return;
+                }
+            }
+            fail("note " + noteId + " not found by " + pattern);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void searchFindsWordPrefix() {
+        assertSearchFinds("budg", insertNote(Notes.ID_ROOT_FOLDER, "quarterly budget review"));
+    }
+
+    @Test
+    public void searchFindsCjkSubstring() {
+        assertSearchFinds("下午开会", insertNote(Notes.ID_ROOT_FOLDER, "今天下午开会讨论预算"));
+    }
+
+    @Test
+    public void searchFindsCjkSubstringWithWord() {
+        assertSearchFinds("budget 下午开会",
+                insertNote(Notes.ID_ROOT_FOLDER, "budget 今天下午开会讨论预算"));
+    }
+
+    @Test
+    public void deletedFolderDropsCachedWidgetNote() {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.SNIPPET, "widget folder");
+        long folderId = ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+        mNoteIds.add(folderId);
+        int widgetId = 987654;
+        values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.WIDGET_ID, widgetId);
+        values.put(NoteColumns.WIDGET_TYPE, Notes.TYPE_WIDGET_2X);
+        long noteId = ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+        mNoteIds.add(noteId);
+
+        NoteCache cache = NoteCache.getInstance(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        NoteCache.NoteRecord record = cache.getNoteByWidgetId(widgetId);
+        assertNotNull(record);
+        assertEquals(noteId, record.getId());
+
+        // the note is deleted by a trigger of the folder
+        assertEquals(1, mResolver.delete(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folderId), null, null));
+        assertNull(cache.getNoteByWidgetId(widgetId));
+        assertNull(cache.getNote(noteId));
+    }
+
+    @Test
+    public void largeContentIsReadWhole() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= DataContentCodec.COMPRESS_THRESHOLD) {
+            content.append("line of a long pasted log\n");
+        }
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.NOTE_ID, insertNote(Notes.ID_ROOT_FOLDER));
+        values.put(DataColumns.MIME_TYPE, DataConstants.NOTE);
+        values.put(DataColumns.CONTENT, content.toString());
+        Uri dataUri = mResolver.insert(Notes.CONTENT_DATA_URI, values);
+        assertNotNull(dataUri);
+
+        Cursor c = mResolver.query(dataUri, new String[] { DataColumns.CONTENT }, null, null,
+                null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            // the columns read to decode the content stay out of the projection
+            assertEquals(1, c.getColumnCount());
+            assertEquals(content.toString(), c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void folderUriRejectsNonNumericId() {
+        mResolver.query(Uri.withAppendedPath(Notes.CONTENT_FOLDER_URI, "abc"), null, null, null,
+                null);
+    }
+}
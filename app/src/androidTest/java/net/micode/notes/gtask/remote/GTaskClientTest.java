@@ -0,0 +1,132 @@
+package net.micode.notes.gtask.remote;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs GTaskClient against an in-process fake of the task server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GTaskClientTest {
+    private static final long CLIENT_VERSION = 42;
+
+    private FakeTransport mTransport;
+
+    private GTaskClient mClient;
+
+    /**
+     * Serves the task page on get, and answers every create action of a post with a new id
+     */
+    private static class FakeTransport implements GTaskTransport {
+        final List<JSONObject> mPosts = Collections.synchronizedList(new ArrayList<JSONObject>());
+
+        @Override
+        public InputStream get(String url) throws IOException {
+            return new ByteArrayInputStream(("<html><script>_setup({\"v\":" + CLIENT_VERSION
+                    + ",\"t\":{}})</script></html>").getBytes("UTF-8"));
+        }
+
+        @Override
+        public InputStream post(String url, byte[] formBody) throws IOException {
+            String form = new String(formBody, "UTF-8");
+            assertTrue(form, form.startsWith("r="));
+            try {
+                JSONObject request = new JSONObject(URLDecoder.decode(form.substring(2), "UTF-8"));
+                mPosts.add(request);
+                JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < actions.length(); i++) {
+                    JSONObject action = actions.getJSONObject(i);
+                    JSONObject result = new JSONObject();
+                    String actionId = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+                    result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+                    if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(
+                            action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, "gid-" + actionId);
+                    }
+                    results.put(result);
+                }
+                JSONObject response = new JSONObject();
+                response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+                return new ByteArrayInputStream(response.toString().getBytes("UTF-8"));
+            } catch (JSONException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        @Override
+        public void resetSession() {
+        }
+
+        @Override
+        public List<String> getCookieNames() {
+            return Collections.singletonList("GTL");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTransport = new FakeTransport();
+        mClient = GTaskClient.getInstance();
+        mClient.resetUpdateArray();
+        mClient.setTransport(mTransport);
+        assertTrue(mClient.loginGtask("token"));
+    }
+
+    @After
+    public void tearDown() {
+        mClient.resetUpdateArray();
+        // back to the default transport, which needs a real login
+        mClient.setTransport(null);
+    }
+
+    @Test
+    public void commitUpdateSendsQueuedCreatesInOneRequest() throws Exception {
+        TaskList list = new TaskList();
+        list.setGid("list");
+        Task first = new Task();
+        first.setName("first");
+        list.addChildTask(first);
+        Task second = new Task();
+        second.setName("second");
+        list.addChildTask(second);
+
+        mClient.createTask(first);
+        mClient.createTask(second);
+        assertTrue(mTransport.mPosts.isEmpty());
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.mPosts.size());
+        JSONObject request = mTransport.mPosts.get(0);
+        assertEquals(CLIENT_VERSION,
+                request.getLong(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION));
+        JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+        assertEquals(2, actions.length());
+        assertEquals("gid-" + actions.getJSONObject(0)
+                .getString(GTaskStringUtils.GTASK_JSON_ACTION_ID), first.getGid());
+        assertEquals("gid-" + actions.getJSONObject(1)
+                .getString(GTaskStringUtils.GTASK_JSON_ACTION_ID), second.getGid());
+        assertTrue(mClient.takeWrittenListGids().contains("list"));
+    }
+}
@@ -0,0 +1,211 @@
+package net.micode.notes.gtask.remote;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads the task lists through GTaskManager from an in-process fake of the task server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GTaskManagerTest {
+    private static final String META_LIST = "meta";
+
+    private FakeTaskServer mServer;
+
+    private GTaskListCache mListCache;
+
+    /**
+     * Serves the task page with its lists, and empty lists on get_all
+     */
+    private static class FakeTaskServer implements GTaskTransport {
+        /** last_modified of the lists by gid, in the remote order */
+        final Map<String, Long> mLists = new LinkedHashMap<String, Long>();
+
+        final Map<String, Integer> mDownloads = new HashMap<String, Integer>();
+
+        long mDownloadDelayMs;
+
+        int mDownloading;
+
+        int mMaxDownloading;
+
+        @Override
+        public synchronized InputStream get(String url) throws IOException {
+            try {
+                JSONArray lists = new JSONArray();
+                for (Map.Entry<String, Long> entry : mLists.entrySet()) {
+                    JSONObject list = new JSONObject();
+                    list.put(GTaskStringUtils.GTASK_JSON_ID, entry.getKey());
+                    list.put(GTaskStringUtils.GTASK_JSON_NAME, GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + (META_LIST.equals(entry.getKey()) ? GTaskStringUtils.FOLDER_META
+                                    : entry.getKey()));
+                    list.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entry.getValue());
+                    lists.put(list);
+                }
+                JSONObject setup = new JSONObject();
+                setup.put("v", 42);
+                setup.put("t", new JSONObject().put(GTaskStringUtils.GTASK_JSON_LISTS, lists));
+                return new ByteArrayInputStream(("<html><script>_setup(" + setup
+                        + ")</script></html>").getBytes("UTF-8"));
+            } catch (JSONException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        @Override
+        public InputStream post(String url, byte[] formBody) throws IOException {
+            try {
+                JSONObject request = new JSONObject(URLDecoder.decode(
+                        new String(formBody, "UTF-8").substring(2), "UTF-8"));
+                JSONObject action = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST)
+                        .getJSONObject(0);
+                JSONObject response = new JSONObject();
+                if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(
+                        action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                    download(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+                    response.put(GTaskStringUtils.GTASK_JSON_TASKS, new JSONArray());
+                } else {
+                    response.put(GTaskStringUtils.GTASK_JSON_RESULTS, new JSONArray());
+                }
+                return new ByteArrayInputStream(response.toString().getBytes("UTF-8"));
+            } catch (JSONException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        private void download(String listGid) throws IOException {
+            synchronized (this) {
+                Integer count = mDownloads.get(listGid);
+                mDownloads.put(listGid, count == null ? 1 : count + 1);
+                mDownloading++;
+                mMaxDownloading = Math.max(mMaxDownloading, mDownloading);
+            }
+            try {
+                Thread.sleep(mDownloadDelayMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            } finally {
+                synchronized (this) {
+                    mDownloading--;
+                }
+            }
+        }
+
+        synchronized int getDownloads(String listGid) {
+            Integer count = mDownloads.get(listGid);
+            return count == null ? 0 : count;
+        }
+
+        @Override
+        public void resetSession() {
+        }
+
+        @Override
+        public List<String> getCookieNames() {
+            return Collections.singletonList("GTL");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mServer = new FakeTaskServer();
+        mServer.mLists.put(META_LIST, 100L);
+        mServer.mLists.put("a", 100L);
+        mServer.mLists.put("b", 100L);
+        GTaskClient client = GTaskClient.getInstance();
+        client.resetUpdateArray();
+        client.setTransport(mServer);
+        assertTrue(client.loginGtask("token"));
+        mListCache = new GTaskListCache(InstrumentationRegistry.getInstrumentation()
+                .getTargetContext(), "test@example.com");
+        GTaskManager.getInstance().setListCache(mListCache);
+    }
+
+    @After
+    public void tearDown() {
+        mListCache.retain(new HashSet<String>());
+        GTaskManager.getInstance().setListCache(null);
+        GTaskClient client = GTaskClient.getInstance();
+        client.resetUpdateArray();
+        // back to the default transport, which needs a real login
+        client.setTransport(null);
+    }
+
+    @Test
+    public void unchangedListsAreNotDownloadedAgain() throws Exception {
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.initGTaskList(true);
+        assertEquals(1, mServer.getDownloads(META_LIST));
+        assertEquals(1, mServer.getDownloads("a"));
+        assertEquals(1, mServer.getDownloads("b"));
+
+        // the sync writes a task of list b, which changes b on the server
+        TaskList listB = new TaskList();
+        listB.setGid("b");
+        Task task = new Task();
+        task.setGid("task");
+        task.setName("task");
+        listB.addChildTask(task);
+        GTaskClient.getInstance().addUpdateNode(task);
+        mServer.mLists.put("b", 200L);
+
+        // refreshing the sync ids only downloads the written list
+        manager.reloadGTaskList();
+        assertEquals(1, mServer.getDownloads(META_LIST));
+        assertEquals(1, mServer.getDownloads("a"));
+        assertEquals(2, mServer.getDownloads("b"));
+
+        // the next sync downloads nothing
+        manager.initGTaskList(true);
+        assertEquals(1, mServer.getDownloads(META_LIST));
+        assertEquals(1, mServer.getDownloads("a"));
+        assertEquals(2, mServer.getDownloads("b"));
+    }
+
+    @Test
+    public void listsAreDownloadedInParallel() throws Exception {
+        for (int i = 0; i < 3 * GTaskClient.MAX_CONCURRENT_REQUESTS; i++) {
+            mServer.mLists.put("list" + i, 100L);
+        }
+        mServer.mDownloadDelayMs = 200;
+
+        long start = System.nanoTime();
+        GTaskManager.getInstance().initGTaskList(false);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        for (String gid : mServer.mLists.keySet()) {
+            assertEquals(gid, 1, mServer.getDownloads(gid));
+        }
+        int lists = mServer.mLists.size();
+        assertTrue("max " + mServer.mMaxDownloading, mServer.mMaxDownloading > 1);
+        assertTrue("max " + mServer.mMaxDownloading,
+                mServer.mMaxDownloading <= GTaskClient.MAX_CONCURRENT_REQUESTS);
+        // one after another they take the delay of every list
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < lists * mServer.mDownloadDelayMs);
+    }
+}
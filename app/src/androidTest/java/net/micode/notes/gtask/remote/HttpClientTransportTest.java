@@ -0,0 +1,155 @@
+package net.micode.notes.gtask.remote;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends requests through the pooled transport to a keep-alive HTTP server on localhost.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HttpClientTransportTest {
+    private static final String RESPONSE_BODY = "ok";
+
+    private ServerSocket mServerSocket;
+
+    private final AtomicInteger mConnections = new AtomicInteger();
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/tasks";
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        mConnections.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        });
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+    }
+
+    /**
+     * Answer the requests of a connection until the client closes it
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String headers;
+            while ((headers = readHeaders(in)) != null) {
+                int contentLength = 0;
+                for (String line : headers.split("\r\n")) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < contentLength; i++) {
+                    if (in.read() < 0) {
+                        return;
+                    }
+                }
+                mRequests.incrementAndGet();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + RESPONSE_BODY.length() + "\r\n\r\n" + RESPONSE_BODY).getBytes("UTF-8"));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return the request line and headers, or null at the end of the connection
+     */
+    private static String readHeaders(InputStream in) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int matched = 0;
+        byte[] end = "\r\n\r\n".getBytes("UTF-8");
+        int b;
+        while ((b = in.read()) >= 0) {
+            headers.write(b);
+            matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+            if (matched == end.length) {
+                return headers.toString("UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() throws IOException {
+        HttpClientTransport transport = new HttpClientTransport();
+        byte[] smallForm = "r=%7B%7D".getBytes("UTF-8");
+        byte[] largeForm = new byte[4096];
+        Arrays.fill(largeForm, (byte) 'a');
+        for (int i = 0; i < 5; i++) {
+            assertEquals(RESPONSE_BODY, readFully(transport.get(mUrl)));
+            assertEquals(RESPONSE_BODY, readFully(transport.post(mUrl, smallForm)));
+            // gzipped bodies go through the same connection
+            assertEquals(RESPONSE_BODY, readFully(transport.post(mUrl, largeForm)));
+        }
+        // a new session keeps the pooled connection, which isn't idle for long
+        transport.resetSession();
+        assertEquals(RESPONSE_BODY, readFully(transport.get(mUrl)));
+
+        assertEquals(16, mRequests.get());
+        assertEquals(1, mConnections.get());
+    }
+}
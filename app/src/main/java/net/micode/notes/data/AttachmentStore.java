@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.Attachment;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 附件按内容的哈希值保存为文件，相同内容的附件在所有便签间只保存一份。
+ * data表中{@link Attachment}类型的行通过哈希值引用附件，没有行引用的附件由
+ * {@link #collectGarbage}删除。引用不单独计数，回收时标记data表中仍被引用的哈希值，
+ * 清除其余的文件，data表本身就是引用的唯一来源
+ */
+public class AttachmentStore {
+    private static final String TAG = "AttachmentStore";
+
+    private static final String DIR_NAME = "attachments";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Files younger than this are not collected, their data rows may not have been inserted
+     */
+    private static final long GC_GRACE_PERIOD_MS = 60 * 60 * 1000;
+
+    private final File mDir;
+
+    public AttachmentStore(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    /**
+     * Copy the stream into the store, or only touch the stored file if the same content is
+     * already there
+     * @return hash of the content, which names the attachment
+     */
+    public String put(InputStream in) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Can't create attachment directory");
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+
+        File temp = File.createTempFile("put", TEMP_FILE_SUFFIX, mDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+
+            String hash = toHex(digest.digest());
+            File file = new File(mDir, hash);
+            if (file.exists()) {
+                // keep it out of the collection until the new reference is inserted
+                file.setLastModified(System.currentTimeMillis());
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Can't move attachment to " + file.getPath());
+            }
+            return hash;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Get the file of the attachment, the hash is checked so it can't point out of the store
+     */
+    public File getFile(String hash) throws FileNotFoundException {
+        if (!isHash(hash)) {
+            throw new FileNotFoundException("Invalid attachment " + hash);
+        }
+        File file = new File(mDir, hash);
+        if (!file.exists()) {
+            throw new FileNotFoundException("No attachment " + hash);
+        }
+        return file;
+    }
+
+    /**
+     * Delete the attachments no longer referenced by any data, and the temp files left by
+     * interrupted copies
+     * @return count of deleted files
+     */
+    public int collectGarbage(SQLiteDatabase db) {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        Set<String> referenced = new HashSet<String>();
+        Cursor c = db.query(true, TABLE.DATA, new String[] { Attachment.HASH },
+                Attachment.MIME_TYPE + "=?", new String[] { Attachment.CONTENT_ITEM_TYPE },
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                referenced.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        int count = 0;
+        long collectBefore = System.currentTimeMillis() - GC_GRACE_PERIOD_MS;
+        for (File file : files) {
+            if (referenced.contains(file.getName()) || file.lastModified() > collectBefore) {
+                continue;
+            }
+            if (file.delete()) {
+                count++;
+            }
+        }
+        Log.d(TAG, count + " attachments have been collected");
+        return count;
+    }
+
+    private static boolean isHash(String hash) {
+        if (hash == null || hash.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char ch = hash.charAt(i);
+            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataColumns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 超过{@link #COMPRESS_THRESHOLD}的内容压缩后保存在{@link DataColumns#COMPRESSED_CONTENT}中，
+ * {@link DataColumns#CONTENT}只保留开头部分，触发器维护的摘要使用明文。全文索引由写入压缩内容的
+ * 代码用完整内容补上（见NotesDatabaseHelper.indexCompressedContent）。
+ * 只有需要完整内容的地方（打开便签、同步、导出、建索引）才需要解压
+ */
+public class DataContentCodec {
+    private static final String TAG = "DataContentCodec";
+
+    public static final int CODEC_PLAIN = 0;
+
+    public static final int CODEC_DEFLATE = 1;
+
+    /**
+     * Contents longer than this, in chars, are compressed
+     */
+    public static final int COMPRESS_THRESHOLD = 16 * 1024;
+
+    /**
+     * Chars of a compressed content kept as plain text in {@link DataColumns#CONTENT}
+     */
+    public static final int PLAIN_PREFIX_LENGTH = 1024;
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private DataContentCodec() {
+    }
+
+    /**
+     * @return values to write, with a large {@link DataColumns#CONTENT} replaced by its
+     * compressed form, the given values are not modified
+     */
+    public static ContentValues encode(ContentValues values) {
+        if (values == null || !values.containsKey(DataColumns.CONTENT)) {
+            return values;
+        }
+        values = new ContentValues(values);
+        String content = values.getAsString(DataColumns.CONTENT);
+        byte[] compressed = null;
+        if (content != null && content.length() > COMPRESS_THRESHOLD) {
+            compressed = deflate(content);
+        }
+        if (compressed == null) {
+            values.put(DataColumns.CONTENT_CODEC, CODEC_PLAIN);
+            values.putNull(DataColumns.COMPRESSED_CONTENT);
+            return values;
+        }
+        int end = PLAIN_PREFIX_LENGTH;
+        // 不要把代理对拆开
+        if (Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        values.put(DataColumns.CONTENT, content.substring(0, end));
+        values.put(DataColumns.CONTENT_CODEC, CODEC_DEFLATE);
+        values.put(DataColumns.COMPRESSED_CONTENT, compressed);
+        return values;
+    }
+
+    /**
+     * @return whether the values returned by {@link #encode} hold a compressed content
+     */
+    public static boolean isCompressed(ContentValues encoded) {
+        Integer codec = encoded != null ? encoded.getAsInteger(DataColumns.CONTENT_CODEC) : null;
+        return codec != null && codec == CODEC_DEFLATE;
+    }
+
+    /**
+     * @return the whole content of the data row, the projection of the cursor should include
+     * {@link DataColumns#CONTENT_CODEC} and {@link DataColumns#COMPRESSED_CONTENT}
+     */
+    public static String decode(Cursor cursor, int contentColumn, int codecColumn,
+            int compressedColumn) {
+        String content = cursor.getString(contentColumn);
+        if (cursor.getInt(codecColumn) != CODEC_DEFLATE) {
+            return content;
+        }
+        String whole = inflate(cursor.getBlob(compressedColumn));
+        return whole != null ? whole : content;
+    }
+
+    private static byte[] deflate(String content) {
+        byte[] input;
+        try {
+            input = content.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            // 压缩效果不好时直接保存明文
+            return out.size() < input.length ? out.toByteArray() : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed) {
+        if (compressed == null) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    Log.e(TAG, "Truncated compressed content");
+                    return null;
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toString(CHARSET);
+        } catch (DataFormatException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.Arrays;
+
+/**
+ * 通过NotesProvider查询的数据行，{@link DataColumns#CONTENT}读出的是完整内容，压缩的内容在读取时解压。
+ * 为解压而额外查询的列排在投影之后，对调用者不可见
+ */
+class DataContentCursor extends CursorWrapper {
+    private final int mColumnCount;
+
+    private final int mContentColumn;
+
+    private final int mCodecColumn;
+
+    private final int mCompressedColumn;
+
+    private int mDecodedPosition = -1;
+
+    private String mDecoded;
+
+    private DataContentCursor(Cursor cursor, int columnCount) {
+        super(cursor);
+        mColumnCount = columnCount;
+        mContentColumn = cursor.getColumnIndexOrThrow(DataColumns.CONTENT);
+        mCodecColumn = cursor.getColumnIndexOrThrow(DataColumns.CONTENT_CODEC);
+        mCompressedColumn = cursor.getColumnIndexOrThrow(DataColumns.COMPRESSED_CONTENT);
+    }
+
+    /**
+     * Query the data table, a {@link DataColumns#CONTENT} in the projection is read whole
+     */
+    static Cursor query(SQLiteDatabase db, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (projection == null) {
+            return new DataContentCursor(db.query(TABLE.DATA, null, selection, selectionArgs,
+                    null, null, sortOrder), -1);
+        }
+        if (!Arrays.asList(projection).contains(DataColumns.CONTENT)) {
+            return db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
+                    sortOrder);
+        }
+        String[] columns = Arrays.copyOf(projection, projection.length + 2);
+        columns[projection.length] = DataColumns.CONTENT_CODEC;
+        columns[projection.length + 1] = DataColumns.COMPRESSED_CONTENT;
+        return new DataContentCursor(db.query(TABLE.DATA, columns, selection, selectionArgs,
+                null, null, sortOrder), projection.length);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex != mContentColumn) {
+            return super.getString(columnIndex);
+        }
+        // 同一行的内容只解压一次
+        int position = getPosition();
+        if (position != mDecodedPosition) {
+            mDecoded = DataContentCodec.decode(getWrappedCursor(), mContentColumn, mCodecColumn,
+                    mCompressedColumn);
+            mDecodedPosition = position;
+        }
+        return mDecoded;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnCount < 0 ? super.getColumnCount() : mColumnCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        String[] names = super.getColumnNames();
+        return mColumnCount < 0 ? names : Arrays.copyOf(names, mColumnCount);
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        if (mColumnCount >= 0 && columnIndex >= mColumnCount) {
+            throw new IllegalArgumentException("Unknown column " + columnIndex);
+        }
+        return super.getColumnName(columnIndex);
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        int index = super.getColumnIndex(columnName);
+        return mColumnCount >= 0 && index >= mColumnCount ? -1 : index;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+}
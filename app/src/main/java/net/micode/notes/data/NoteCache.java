@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.List;
+
+/**
+ * 按便签id缓存解码后的便签，编辑器、桌面小部件、闹钟和通话记录列表重复打开同一便签时不再查询数据库。
+ * NotesProvider和NotesDao在写入提交后按变化的uri或便签id使缓存失效
+ */
+public class NoteCache implements ComponentCallbacks2 {
+    private static final String TAG = "NoteCache";
+
+    private static NoteCache sInstance;
+
+    /**
+     * The cache takes up to this fraction of the app's memory class
+     */
+    private static final int MEMORY_CLASS_FRACTION = 32;
+
+    /**
+     * Estimated bytes of a record besides its strings
+     */
+    private static final int RECORD_OVERHEAD_BYTES = 128;
+
+    /**
+     * The note shown by a widget, the selection args are the widget id and the trash folder id
+     */
+    static final String WIDGET_NOTE_SELECTION = NoteColumns.WIDGET_ID + "=? AND "
+            + NoteColumns.PARENT_ID + "<>?";
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.PARENT_ID,
+            NoteColumns.TYPE,
+            NoteColumns.ALERTED_DATE,
+            NoteColumns.BG_COLOR_ID,
+            NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE,
+            NoteColumns.MODIFIED_DATE,
+            NoteColumns.SNIPPET,
+    };
+
+    private static final int NOTE_ID_COLUMN = 0;
+
+    private static final int NOTE_PARENT_ID_COLUMN = 1;
+
+    private static final int NOTE_TYPE_COLUMN = 2;
+
+    private static final int NOTE_ALERTED_DATE_COLUMN = 3;
+
+    private static final int NOTE_BG_COLOR_ID_COLUMN = 4;
+
+    private static final int NOTE_WIDGET_ID_COLUMN = 5;
+
+    private static final int NOTE_WIDGET_TYPE_COLUMN = 6;
+
+    private static final int NOTE_MODIFIED_DATE_COLUMN = 7;
+
+    private static final int NOTE_SNIPPET_COLUMN = 8;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            DataColumns.ID,
+            DataColumns.MIME_TYPE,
+            DataColumns.CONTENT,
+            DataColumns.DATA1,
+            DataColumns.DATA3,
+            DataColumns.CONTENT_CODEC,
+            DataColumns.COMPRESSED_CONTENT,
+    };
+
+    private static final int DATA_ID_COLUMN = 0;
+
+    private static final int DATA_MIME_TYPE_COLUMN = 1;
+
+    private static final int DATA_CONTENT_COLUMN = 2;
+
+    private static final int DATA_MODE_COLUMN = 3;
+
+    private static final int DATA_PHONE_NUMBER_COLUMN = 4;
+
+    private static final int DATA_CONTENT_CODEC_COLUMN = 5;
+
+    private static final int DATA_COMPRESSED_CONTENT_COLUMN = 6;
+
+    /**
+     * A note with its text and call data, as the editor, widgets and alarms read it
+     */
+    public static class NoteRecord {
+        private long mId;
+
+        private long mParentId;
+
+        private int mType;
+
+        private long mAlertedDate;
+
+        private int mBgColorId;
+
+        private int mWidgetId;
+
+        private int mWidgetType;
+
+        private long mModifiedDate;
+
+        private String mSnippet = "";
+
+        private long mTextDataId;
+
+        private String mContent = "";
+
+        private int mMode;
+
+        private long mCallDataId;
+
+        private String mPhoneNumber = "";
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getParentId() {
+            return mParentId;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public long getAlertedDate() {
+            return mAlertedDate;
+        }
+
+        public int getBgColorId() {
+            return mBgColorId;
+        }
+
+        public int getWidgetId() {
+            return mWidgetId;
+        }
+
+        public int getWidgetType() {
+            return mWidgetType;
+        }
+
+        public long getModifiedDate() {
+            return mModifiedDate;
+        }
+
+        public String getSnippet() {
+            return mSnippet;
+        }
+
+        public long getTextDataId() {
+            return mTextDataId;
+        }
+
+        /**
+         * @return the whole decompressed content of the text data
+         */
+        public String getContent() {
+            return mContent;
+        }
+
+        public int getMode() {
+            return mMode;
+        }
+
+        public long getCallDataId() {
+            return mCallDataId;
+        }
+
+        public String getPhoneNumber() {
+            return mPhoneNumber;
+        }
+
+        public boolean isInTrash() {
+            return mParentId == Notes.ID_TRASH_FOLER;
+        }
+
+        private int getSizeInBytes() {
+            return RECORD_OVERHEAD_BYTES
+                    + 2 * (mSnippet.length() + mContent.length() + mPhoneNumber.length());
+        }
+    }
+
+    private final Context mContext;
+
+    private final LruCache<Long, NoteRecord> mRecords;
+
+    /**
+     * Increased by every invalidation, a record loaded meanwhile may be stale and isn't cached
+     */
+    private long mGeneration;
+
+    public static synchronized NoteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NoteCache(Context context) {
+        mContext = context;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        mRecords = new LruCache<Long, NoteRecord>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, NoteRecord value) {
+                return value.getSizeInBytes();
+            }
+        };
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Get the note from the cache, or load and cache it
+     * @return the note, or null if there's no such note
+     */
+    public NoteRecord getNote(long noteId) {
+        long generation;
+        synchronized (this) {
+            NoteRecord record = mRecords.get(noteId);
+            if (record != null) {
+                return record;
+            }
+            generation = mGeneration;
+        }
+        NoteRecord record = load(noteId);
+        if (record != null) {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mRecords.put(noteId, record);
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Get the note shown by the widget. The widget is always looked up in the database, a
+     * cached note may have been trashed or deleted together with its folder meanwhile, only
+     * the note itself comes from the cache
+     * @return the note, or null if no note out of trash is shown by the widget
+     */
+    public NoteRecord getNoteByWidgetId(int widgetId) {
+        Cursor c = NotesDao.getInstance(mContext).queryNotes(new String[] { NoteColumns.ID },
+                WIDGET_NOTE_SELECTION,
+                new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
+                null);
+        long noteId;
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getCount() > 1) {
+                Log.e(TAG, "Multiple message with same widget id:" + widgetId);
+                return null;
+            }
+            noteId = c.getLong(0);
+        } finally {
+            c.close();
+        }
+        return getNote(noteId);
+    }
+
+    private NoteRecord load(long noteId) {
+        NotesDao dao = NotesDao.getInstance(mContext);
+        NoteRecord record = new NoteRecord();
+        Cursor c = dao.queryNote(noteId, NOTE_PROJECTION);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            record.mId = c.getLong(NOTE_ID_COLUMN);
+            record.mParentId = c.getLong(NOTE_PARENT_ID_COLUMN);
+            record.mType = c.getInt(NOTE_TYPE_COLUMN);
+            record.mAlertedDate = c.getLong(NOTE_ALERTED_DATE_COLUMN);
+            record.mBgColorId = c.getInt(NOTE_BG_COLOR_ID_COLUMN);
+            record.mWidgetId = c.getInt(NOTE_WIDGET_ID_COLUMN);
+            record.mWidgetType = c.getInt(NOTE_WIDGET_TYPE_COLUMN);
+            record.mModifiedDate = c.getLong(NOTE_MODIFIED_DATE_COLUMN);
+            record.mSnippet = c.getString(NOTE_SNIPPET_COLUMN);
+        } finally {
+            c.close();
+        }
+
+        c = dao.queryNoteData(noteId, DATA_PROJECTION);
+        try {
+            while (c.moveToNext()) {
+                String type = c.getString(DATA_MIME_TYPE_COLUMN);
+                if (DataConstants.NOTE.equals(type)) {
+                    record.mTextDataId = c.getLong(DATA_ID_COLUMN);
+                    record.mContent = DataContentCodec.decode(c, DATA_CONTENT_COLUMN,
+                            DATA_CONTENT_CODEC_COLUMN, DATA_COMPRESSED_CONTENT_COLUMN);
+                    record.mMode = c.getInt(DATA_MODE_COLUMN);
+                } else if (DataConstants.CALL_NOTE.equals(type)) {
+                    record.mCallDataId = c.getLong(DATA_ID_COLUMN);
+                    record.mPhoneNumber = c.getString(DATA_PHONE_NUMBER_COLUMN);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return record;
+    }
+
+    /**
+     * Invalidate by a changed uri of NotesProvider. A note item drops only that note, the
+     * note or data collection drops all notes. Data items and folders are followed by the
+     * uris of their notes, so they are ignored
+     */
+    public void invalidate(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty() || !Notes.AUTHORITY.equals(uri.getAuthority())) {
+            return;
+        }
+        String collection = segments.get(0);
+        if (segments.size() == 1) {
+            if (isPathOf(Notes.CONTENT_NOTE_URI, collection)
+                    || isPathOf(Notes.CONTENT_DATA_URI, collection)) {
+                invalidateAll();
+            }
+        } else if (isPathOf(Notes.CONTENT_NOTE_URI, collection)) {
+            try {
+                invalidate(ContentUris.parseId(uri));
+            } catch (NumberFormatException e) {
+                invalidateAll();
+            }
+        }
+    }
+
+    private static boolean isPathOf(Uri collectionUri, String segment) {
+        return collectionUri.getPathSegments().get(0).equals(segment);
+    }
+
+    public synchronized void invalidate(long noteId) {
+        mGeneration++;
+        mRecords.remove(noteId);
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mRecords.evictAll();
+    }
+
+    public synchronized int getHitCount() {
+        return mRecords.hitCount();
+    }
+
+    public synchronized int getMissCount() {
+        return mRecords.missCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // 进程在后台或内存紧张时全部丢弃，需要时再从数据库加载
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            invalidateAll();
+        }
+        Log.d(TAG, "Trim memory at level " + level + ", hit " + getHitCount()
+                + " miss " + getMissCount());
+    }
+
+    @Override
+    public void onLowMemory() {
+        invalidateAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
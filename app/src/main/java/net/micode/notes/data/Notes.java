@@ -50,6 +50,7 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
+        public static final String ATTACHMENT = Attachment.CONTENT_ITEM_TYPE;
     }
 
     /**
@@ -64,6 +65,91 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query the notes and folders shown in a folder, append the folder's id to it, which
+     * is negative for the system folders. The root folder also shows the call record folder.
+     * Changes are notified per folder, so observers are not woken up by unrelated folders
+     */
+    public static final Uri CONTENT_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/folder");
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} which apply to a set of notes
+     * given by {@link #EXTRA_NOTE_IDS} in one statement
+     * {@link #METHOD_MOVE_NOTES} moves notes to the folder of {@link #EXTRA_FOLDER_ID}
+     * {@link #METHOD_TRASH_NOTES} moves notes to the trash folder
+     * {@link #METHOD_RESTORE_NOTES} moves notes in trash back to their original folder
+     * {@link #METHOD_DELETE_NOTES} deletes notes
+     * The number of affected notes is returned in {@link #RESULT_COUNT}
+     */
+    public static final String METHOD_MOVE_NOTES = "moveNotes";
+    public static final String METHOD_TRASH_NOTES = "trashNotes";
+    public static final String METHOD_RESTORE_NOTES = "restoreNotes";
+    public static final String METHOD_DELETE_NOTES = "deleteNotes";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} which deletes the notes trashed
+     * before {@link #EXTRA_TRASHED_BEFORE} in small transactions and releases the free pages
+     */
+    public static final String METHOD_PURGE_TRASH = "purgeTrash";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} which writes a consistent
+     * snapshot of the whole database into the zip file given by the arg, while notes can still
+     * be read and edited. Whether it succeeded is returned in {@link #RESULT_SUCCESS}. An
+     * {@link android.os.ResultReceiver} in {@link #EXTRA_PROGRESS_RECEIVER} gets the percent
+     * copied in {@link #RESULT_PROGRESS} after each chunk
+     */
+    public static final String METHOD_SNAPSHOT_DATABASE = "snapshotDatabase";
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} which begin and end a sync
+     * session. While a session is running the change notifications are held back and sent
+     * together when it ends, so the observers don't requery for every synced note
+     */
+    public static final String METHOD_BEGIN_SYNC_SESSION = "beginSyncSession";
+    public static final String METHOD_END_SYNC_SESSION = "endSyncSession";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} which notifies the note, data and
+     * folder collections, held back like other changes while a sync session is running. Used
+     * after writes made directly through {@link NotesDao}
+     */
+    public static final String METHOD_NOTIFY_CHANGED = "notifyChanged";
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} which look up values without
+     * a cursor
+     * {@link #METHOD_EXIST_NOTES} returns in {@link #RESULT_NOTE_IDS} the notes of
+     * {@link #EXTRA_NOTE_IDS} which exist, and if {@link #EXTRA_NOTE_TYPE} is given, are of
+     * the type and not in trash
+     * {@link #METHOD_EXIST_DATA} returns in {@link #RESULT_DATA_IDS} the data of
+     * {@link #EXTRA_DATA_IDS} which exist
+     * {@link #METHOD_GET_SNIPPET} returns in {@link #RESULT_SNIPPET} the snippet of the note
+     * whose id is the arg
+     * {@link #METHOD_COUNT_USER_FOLDERS} returns in {@link #RESULT_COUNT} the count of folders
+     * not in trash
+     * {@link #METHOD_COUNT_FOLDER_NAME} returns in {@link #RESULT_COUNT} the count of folders
+     * not in trash named the arg
+     */
+    public static final String METHOD_EXIST_NOTES = "existNotes";
+    public static final String METHOD_EXIST_DATA = "existData";
+    public static final String METHOD_GET_SNIPPET = "getSnippet";
+    public static final String METHOD_COUNT_USER_FOLDERS = "countUserFolders";
+    public static final String METHOD_COUNT_FOLDER_NAME = "countFolderName";
+
+    public static final String EXTRA_NOTE_IDS = "note_ids";
+    public static final String EXTRA_FOLDER_ID = "folder_id";
+    public static final String EXTRA_TRASHED_BEFORE = "trashed_before";
+    public static final String EXTRA_NOTE_TYPE = "note_type";
+    public static final String EXTRA_DATA_IDS = "data_ids";
+    public static final String EXTRA_PROGRESS_RECEIVER = "progress_receiver";
+    public static final String RESULT_COUNT = "count";
+    public static final String RESULT_SUCCESS = "success";
+    public static final String RESULT_NOTE_IDS = "note_ids";
+    public static final String RESULT_DATA_IDS = "data_ids";
+    public static final String RESULT_SNIPPET = "snippet";
+    public static final String RESULT_PROGRESS = "progress";
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -102,6 +188,14 @@ public class Notes {
          */
         public static final String SNIPPET = "snippet";
 
+        /**
+         * Bounded preview of the snippet for the notes list, which is maintained by triggers.
+         * For note it's the head of the text with check list markers stripped, for folder
+         * it's the name
+         * <P> Type: TEXT </P>
+         */
+        public static final String PREVIEW = "preview";
+
         /**
          * Note's widget id
          * <P> Type: INTEGER (long) </P>
@@ -168,6 +262,12 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Date when note or folder was moved to the trash folder, maintained by trigger
+         * <P> Type : INTEGER (long) </P>
+         */
+        public static final String TRASHED_DATE = "trashed_date";
     }
 
     public interface DataColumns {
@@ -202,11 +302,25 @@ public class Notes {
         public static final String MODIFIED_DATE = "modified_date";
 
         /**
-         * Data's content
+         * Data's content. Queried through the provider it is the whole content; in the table a
+         * large content only keeps its beginning here, see {@link #CONTENT_CODEC}
          * <P> Type: TEXT </P>
          */
         public static final String CONTENT = "content";
 
+        /**
+         * How the whole content is stored, {@link DataContentCodec#CODEC_PLAIN} when
+         * {@link #CONTENT} holds all of it, or {@link DataContentCodec#CODEC_DEFLATE} when
+         * {@link #CONTENT} only holds the beginning and the rest is in {@link #COMPRESSED_CONTENT}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CONTENT_CODEC = "content_codec";
+
+        /**
+         * Deflated UTF-8 bytes of the whole content, only set for large contents
+         * <P> Type: BLOB </P>
+         */
+        public static final String COMPRESSED_CONTENT = "compressed_content";
 
         /**
          * Generic data column, the meaning is {@link #MIMETYPE} specific, used for
@@ -279,4 +393,32 @@ public class Notes {
 
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/call_note");
     }
+
+    /**
+     * Image, audio or other file attached to a note. The bytes are kept out of the database
+     * in the attachment store, and read through {@link #CONTENT_URI} with the hash appended
+     */
+    public static final class Attachment implements DataColumns {
+        /**
+         * Size of the attachment in bytes
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String SIZE = DATA1;
+
+        /**
+         * SHA-1 hash of the attachment, attachments with the same bytes share the same file
+         * <P> Type: TEXT </P>
+         */
+        public static final String HASH = DATA3;
+
+        /**
+         * Mime type of the attachment's bytes, like image/png
+         * <P> Type: TEXT </P>
+         */
+        public static final String CONTENT_MIME_TYPE = DATA4;
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/attachment";
+
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/attachment");
+    }
 }
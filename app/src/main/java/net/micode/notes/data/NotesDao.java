@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 同一进程内的同步和备份直接通过它读写数据库，不经过NotesProvider的uri解析和变化通知。
+ * UI和外部应用仍然使用NotesProvider
+ * Writes are not notified row by row, callers call {@link #notifyChanged} once they are done
+ */
+public class NotesDao {
+    private static NotesDao sInstance;
+
+    private static final String EXIST_NOTE_SQL = "SELECT COUNT(*) FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.ID + "=?";
+
+    private static final String EXIST_DATA_SQL = "SELECT COUNT(*) FROM " + TABLE.DATA
+            + " WHERE " + DataColumns.ID + "=?";
+
+    private static final String VISIBLE_NOTE_SQL = "SELECT COUNT(*) FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.ID + "=? AND " + NoteColumns.TYPE + "=?"
+            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+
+    private static final String SNIPPET_SQL = "SELECT " + NoteColumns.SNIPPET + " FROM "
+            + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=?";
+
+    private static final String USER_FOLDER_COUNT_SQL = "SELECT COUNT(*) FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+
+    private static final String VISIBLE_FOLDER_NAME_SQL = "SELECT COUNT(*) FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+            + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + " AND " + NoteColumns.SNIPPET + "=?";
+
+    private static final String UPDATE_SYNC_ID_SQL = "UPDATE " + TABLE.NOTE
+            + " SET " + NoteColumns.SYNC_ID + "=?,"
+            + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+            + " WHERE " + NoteColumns.ID + "=?";
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    // 语句在第一次使用时编译，之后在整个进程内复用，使用时以语句本身加锁
+    private final HashMap<String, SQLiteStatement> mStatements =
+            new HashMap<String, SQLiteStatement>();
+
+    /**
+     * The database the statements are compiled against
+     */
+    private SQLiteDatabase mStatementsDb;
+
+    /**
+     * Maps the current row of a cursor to an object, so callers get objects instead of walking
+     * the cursor themselves
+     */
+    public interface RowMapper<T> {
+        T mapRow(Cursor c);
+    }
+
+    public static synchronized NotesDao getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotesDao(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NotesDao(Context context) {
+        mContext = context;
+        mHelper = NotesDatabaseHelper.getInstance(context);
+    }
+
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        synchronized (mStatements) {
+            if (db != mStatementsDb) {
+                // 数据库关闭后重新打开过，之前的语句属于已经关闭的连接
+                closeStatements();
+                mStatementsDb = db;
+            }
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Close the compiled statements, they are compiled again when used next time. Call it
+     * before the database is closed
+     */
+    public void closeStatements() {
+        synchronized (mStatements) {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+            mStatementsDb = null;
+        }
+    }
+
+    public Cursor queryNotes(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return mHelper.getReadableDatabase().query(TABLE.NOTE, projection, selection,
+                selectionArgs, null, null, sortOrder);
+    }
+
+    public Cursor queryNote(long noteId, String[] projection) {
+        return queryNotes(projection, NoteColumns.ID + "=?",
+                new String[] { String.valueOf(noteId) }, null);
+    }
+
+    public Cursor queryData(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return mHelper.getReadableDatabase().query(TABLE.DATA, projection, selection,
+                selectionArgs, null, null, sortOrder);
+    }
+
+    public Cursor queryNoteData(long noteId, String[] projection) {
+        return queryData(projection, DataColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) }, null);
+    }
+
+    /**
+     * @return the note mapped by the mapper, or null if there isn't such note
+     */
+    public <T> T queryNote(long noteId, String[] projection, RowMapper<T> mapper) {
+        List<T> notes = mapRows(queryNote(noteId, projection), mapper);
+        return notes.isEmpty() ? null : notes.get(0);
+    }
+
+    public <T> List<T> queryNotes(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, RowMapper<T> mapper) {
+        return mapRows(queryNotes(projection, selection, selectionArgs, sortOrder), mapper);
+    }
+
+    public <T> List<T> queryData(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, RowMapper<T> mapper) {
+        return mapRows(queryData(projection, selection, selectionArgs, sortOrder), mapper);
+    }
+
+    /**
+     * Map every row of the cursor and close it
+     */
+    private static <T> List<T> mapRows(Cursor c, RowMapper<T> mapper) {
+        try {
+            List<T> rows = new ArrayList<T>(c.getCount());
+            while (c.moveToNext()) {
+                rows.add(mapper.mapRow(c));
+            }
+            return rows;
+        } finally {
+            c.close();
+        }
+    }
+
+    public boolean existsNote(long noteId) {
+        SQLiteStatement statement = getStatement(EXIST_NOTE_SQL);
+        synchronized (statement) {
+            statement.bindLong(1, noteId);
+            return statement.simpleQueryForLong() > 0;
+        }
+    }
+
+    public boolean existsData(long dataId) {
+        SQLiteStatement statement = getStatement(EXIST_DATA_SQL);
+        synchronized (statement) {
+            statement.bindLong(1, dataId);
+            return statement.simpleQueryForLong() > 0;
+        }
+    }
+
+    /**
+     * Whether the note of the type exists and is not in trash
+     */
+    public boolean isNoteVisible(long noteId, int type) {
+        SQLiteStatement statement = getStatement(VISIBLE_NOTE_SQL);
+        synchronized (statement) {
+            statement.bindLong(1, noteId);
+            statement.bindLong(2, type);
+            return statement.simpleQueryForLong() > 0;
+        }
+    }
+
+    /**
+     * Get the ids of the notes which exist, if type isn't negative only the visible notes
+     * of the type are returned
+     */
+    public long[] filterExistingNotes(long[] noteIds, int type) {
+        if (noteIds.length == 1) {
+            boolean exist = type < 0 ? existsNote(noteIds[0]) : isNoteVisible(noteIds[0], type);
+            return exist ? noteIds : new long[0];
+        }
+        String selection = NoteColumns.ID + " IN (" + joinIds(noteIds) + ")";
+        if (type >= 0) {
+            selection += " AND " + NoteColumns.TYPE + "=" + type
+                    + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER;
+        }
+        return queryIds(TABLE.NOTE, NoteColumns.ID, selection);
+    }
+
+    /**
+     * Get the ids of the data which exist
+     */
+    public long[] filterExistingData(long[] dataIds) {
+        if (dataIds.length == 1) {
+            return existsData(dataIds[0]) ? dataIds : new long[0];
+        }
+        return queryIds(TABLE.DATA, DataColumns.ID,
+                DataColumns.ID + " IN (" + joinIds(dataIds) + ")");
+    }
+
+    private long[] queryIds(String table, String column, String selection) {
+        Cursor c = mHelper.getReadableDatabase().query(table, new String[] { column },
+                selection, null, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            int i = 0;
+            while (c.moveToNext()) {
+                ids[i++] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String joinIds(long[] ids) {
+        StringBuilder sb = new StringBuilder(ids.length * 8);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return snippet of the note, or null if there isn't such note
+     */
+    public String getSnippet(long noteId) {
+        SQLiteStatement statement = getStatement(SNIPPET_SQL);
+        synchronized (statement) {
+            statement.bindLong(1, noteId);
+            try {
+                return statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the count of the folders not in trash, system folders are not counted
+     */
+    public int getUserFolderCount() {
+        SQLiteStatement statement = getStatement(USER_FOLDER_COUNT_SQL);
+        synchronized (statement) {
+            return (int) statement.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Get the count of the folders not in trash with the name
+     */
+    public int getVisibleFolderCount(String name) {
+        SQLiteStatement statement = getStatement(VISIBLE_FOLDER_NAME_SQL);
+        synchronized (statement) {
+            statement.bindString(1, name);
+            return (int) statement.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * @return id of the new note, or -1 on failure
+     */
+    public long insertNote(ContentValues values) {
+        return mHelper.getWritableDatabase().insert(TABLE.NOTE, null, values);
+    }
+
+    /**
+     * Update the note and increase its version, like NotesProvider does
+     * @param maxVersion only update if the note's version isn't newer, or negative to always
+     * update
+     */
+    public int updateNote(long noteId, ContentValues values, long maxVersion) {
+        int count;
+        if (maxVersion < 0) {
+            count = NotesDatabaseHelper.updateNote(mHelper.getWritableDatabase(), values,
+                    NoteColumns.ID + "=?", new String[] { String.valueOf(noteId) });
+        } else {
+            count = NotesDatabaseHelper.updateNote(mHelper.getWritableDatabase(), values,
+                    NoteColumns.ID + "=? AND " + NoteColumns.VERSION + "<=?", new String[] {
+                            String.valueOf(noteId), String.valueOf(maxVersion)
+                    });
+        }
+        if (count > 0) {
+            if (values.containsKey(NoteColumns.PARENT_ID) && DatabaseUtils.queryNumEntries(
+                    mHelper.getReadableDatabase(), TABLE.NOTE, NoteColumns.ID + "=? AND "
+                            + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER,
+                    new String[] { String.valueOf(noteId) }) > 0) {
+                // the notes of a moved folder are changed by triggers
+                NoteCache.getInstance(mContext).invalidateAll();
+            } else {
+                NoteCache.getInstance(mContext).invalidate(noteId);
+            }
+        }
+        return count;
+    }
+
+    public void updateSyncId(long noteId, long syncId) {
+        SQLiteStatement statement = getStatement(UPDATE_SYNC_ID_SQL);
+        synchronized (statement) {
+            statement.bindLong(1, syncId);
+            statement.bindLong(2, noteId);
+            if (statement.executeUpdateDelete() > 0) {
+                NoteCache.getInstance(mContext).invalidate(noteId);
+            }
+        }
+    }
+
+    /**
+     * @return id of the new data, or -1 on failure
+     */
+    public long insertData(ContentValues values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues encoded = DataContentCodec.encode(values);
+        long dataId = db.insert(TABLE.DATA, null, encoded);
+        if (dataId > 0 && DataContentCodec.isCompressed(encoded)) {
+            NotesDatabaseHelper.indexCompressedContent(db, DataColumns.ID + "=" + dataId, null);
+        }
+        Long noteId = values.getAsLong(DataColumns.NOTE_ID);
+        if (dataId > 0 && noteId != null) {
+            NoteCache.getInstance(mContext).invalidate(noteId);
+        }
+        return dataId;
+    }
+
+    /**
+     * @param version only update if the data's note still has this version, or negative to
+     * always update
+     */
+    public int updateData(long dataId, ContentValues values, long noteId, long version) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        values = DataContentCodec.encode(values);
+        int count;
+        if (version < 0) {
+            count = db.update(TABLE.DATA, values, DataColumns.ID + "=?",
+                    new String[] { String.valueOf(dataId) });
+        } else {
+            count = db.update(TABLE.DATA, values, DataColumns.ID + "=? AND "
+                    + DataColumns.NOTE_ID + " IN (SELECT " + NoteColumns.ID + " FROM "
+                    + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=? AND "
+                    + NoteColumns.VERSION + "=?)", new String[] {
+                            String.valueOf(dataId), String.valueOf(noteId),
+                            String.valueOf(version)
+                    });
+        }
+        if (count > 0) {
+            if (DataContentCodec.isCompressed(values)) {
+                NotesDatabaseHelper.indexCompressedContent(db, DataColumns.ID + "=" + dataId,
+                        null);
+            }
+            NoteCache.getInstance(mContext).invalidate(noteId);
+        }
+        return count;
+    }
+
+    /**
+     * Notify the observers of all notes and folders once, through NotesProvider so the
+     * notification is coalesced with the others and held back during a sync session
+     */
+    public void notifyChanged() {
+        mContext.getContentResolver().call(Notes.CONTENT_NOTE_URI, Notes.METHOD_NOTIFY_CHANGED,
+                null, null);
+    }
+}
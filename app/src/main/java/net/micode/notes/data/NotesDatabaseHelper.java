@@ -16,12 +16,28 @@
 
 package net.micode.notes.data;
 
+import android.app.ActivityManager;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Process;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -32,16 +48,82 @@ import net.micode.notes.data.Notes.NoteColumns;
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    static final int DB_VERSION = 11;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String NOTE_FTS = "note_fts";
+
+        public static final String META = "meta";
+    }
+
+    public interface MetaColumns {
+        public static final String KEY = "key";
+
+        public static final String VALUE = "value";
     }
 
     private static final String TAG = "NotesDatabaseHelper";
 
+    /**
+     * Open the database in write-ahead-log mode, so the notes list, widgets and alarms keep
+     * reading through the reader connections while a sync is writing
+     */
+    private static final boolean WRITE_AHEAD_LOGGING = true;
+
+    /**
+     * NORMAL is durable in WAL mode except on power loss, and only syncs at checkpoints
+     */
+    private static final String SYNCHRONOUS_MODE = "NORMAL";
+
+    /**
+     * Close reader connections which have been idle for a while, the size of the reader
+     * connection pool itself is decided by the platform
+     */
+    private static final long IDLE_CONNECTION_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Page cache and memory mapped I/O of the primary connection, picked by the memory of
+     * the device. With mmap the pages of note and data are read from the mapping instead of
+     * by read() calls into the page cache, so the page cache can stay small. The primary
+     * connection runs the writes, the migrations and the queries inside transactions; the WAL
+     * reader connections can't be configured by the framework and keep the sqlite defaults
+     */
+    static class PerformanceProfile {
+        final long mmapSize;
+
+        /**
+         * Negative for KiB, like PRAGMA cache_size
+         */
+        final int cacheSize;
+
+        /**
+         * Where sorting and temp tables go, 1 for file and 2 for memory
+         */
+        final int tempStore;
+
+        PerformanceProfile(long mmapSize, int cacheSize, int tempStore) {
+            this.mmapSize = mmapSize;
+            this.cacheSize = cacheSize;
+            this.tempStore = tempStore;
+        }
+    }
+
+    private static final PerformanceProfile LOW_RAM_PROFILE =
+            new PerformanceProfile(0, -512, 1);
+
+    private static final PerformanceProfile HIGH_RAM_PROFILE =
+            new PerformanceProfile(64 * 1024 * 1024, -2048, 2);
+
+    private final PerformanceProfile mProfile;
+
+    private final AttachmentStore mAttachmentStore;
+
+    private boolean mMigrating;
+
     private static NotesDatabaseHelper mInstance;
 
     private static final String CREATE_NOTE_TABLE_SQL =
@@ -62,7 +144,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.PREVIEW + " TEXT NOT NULL DEFAULT ''," +
+            NoteColumns.TRASHED_DATE + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     private static final String CREATE_DATA_TABLE_SQL =
@@ -77,12 +161,111 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA2 + " INTEGER," +
             DataColumns.DATA3 + " TEXT NOT NULL DEFAULT ''," +
             DataColumns.DATA4 + " TEXT NOT NULL DEFAULT ''," +
-            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
+            DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''," +
+            DataColumns.CONTENT_CODEC + " INTEGER NOT NULL DEFAULT 0," +
+            DataColumns.COMPRESSED_CONTENT + " BLOB" +
         ")";
 
+    /**
+     * Data of a note, optionally with the given mime type, also serves lookups by note id only
+     */
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
-        "CREATE INDEX IF NOT EXISTS note_id_index ON " +
-        TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
+        "CREATE INDEX IF NOT EXISTS data_note_id_mime_type_index ON " +
+        TABLE.DATA + "(" + DataColumns.NOTE_ID + "," + DataColumns.MIME_TYPE + ");";
+
+    /**
+     * Notes list of a folder, ordered by type and modified date without sorting
+     */
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," +
+        NoteColumns.MODIFIED_DATE + ");";
+
+    /**
+     * Note of a widget, covers the widget id and trash folder check
+     */
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.WIDGET_ID + "," + NoteColumns.PARENT_ID + ");";
+
+    /**
+     * Notes with alert in the future, covers the query of the alarms to set up
+     */
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alert_date_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.ALERTED_DATE + "," + NoteColumns.TYPE + ");";
+
+    /**
+     * Key/value table for the database's own state
+     */
+    private static final String CREATE_META_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.META + "(" +
+            MetaColumns.KEY + " TEXT PRIMARY KEY," +
+            MetaColumns.VALUE + " TEXT" +
+        ")";
+
+    /**
+     * Set in {@link TABLE#META} while folder counting is suspended by a bulk operation
+     */
+    private static final String META_KEY_FOLDER_COUNT_SUSPENDED = "folder_count_suspended";
+
+    /**
+     * 耗时的回填（建索引、派生列、全文索引）不在onUpgrade中执行，而是在{@link TABLE#META}中
+     * 记录为待执行的迁移，数据库打开后在后台线程分批执行。值为已处理的最大行id，
+     * 每批和进度在同一个事务中提交，所以中断后可以继续，重复执行也没有影响
+     */
+    private static final String META_KEY_MIGRATION_PREFIX = "migration_";
+
+    static final String MIGRATION_INDEXES = "indexes";
+
+    static final String MIGRATION_NOTE_PREVIEW = "note_preview";
+
+    static final String MIGRATION_NOTE_FTS = "note_fts";
+
+    static final String MIGRATION_COMPRESS_CONTENT = "compress_content";
+
+    /**
+     * Background migrations in the order they run, indexes first to speed up the others
+     */
+    private static final String[] MIGRATIONS = new String[] {
+            MIGRATION_INDEXES,
+            MIGRATION_NOTE_PREVIEW,
+            MIGRATION_NOTE_FTS,
+            MIGRATION_COMPRESS_CONTENT,
+    };
+
+    /**
+     * Rows handled in one transaction of a background migration
+     */
+    static final int MIGRATION_CHUNK_SIZE = 500;
+
+    /**
+     * Folder count triggers are skipped while counting is suspended
+     */
+    private static final String WHEN_FOLDER_COUNT_ACTIVE =
+        " WHEN NOT EXISTS (SELECT 1 FROM " + TABLE.META +
+        "  WHERE " + MetaColumns.KEY + "='" + META_KEY_FOLDER_COUNT_SUSPENDED + "')";
+
+    /**
+     * Recount notes of all folders, every folder is counted through the parent id index. The
+     * root folder is its own parent and isn't counted
+     */
+    private static final String RECOUNT_FOLDER_NOTES_SQL =
+        "UPDATE " + TABLE.NOTE +
+        " SET " + NoteColumns.NOTES_COUNT + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child" +
+        "  WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+        "  AND child." + NoteColumns.ID + "<>" + TABLE.NOTE + "." + NoteColumns.ID + ")" +
+        " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE;
+
+    /**
+     * Folders whose note count differs from a full recount
+     */
+    private static final String CHECK_FOLDER_COUNT_SQL =
+        "SELECT COUNT(*) FROM " + TABLE.NOTE +
+        " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+        " AND " + NoteColumns.NOTES_COUNT + "<>(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child" +
+        "  WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+        "  AND child." + NoteColumns.ID + "<>" + TABLE.NOTE + "." + NoteColumns.ID + ")";
 
     /**
      * Increase folder's note count when move note to the folder
@@ -90,6 +273,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER increase_folder_count_on_update "+
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        WHEN_FOLDER_COUNT_ACTIVE +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -102,6 +286,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_update " +
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        WHEN_FOLDER_COUNT_ACTIVE +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -115,6 +300,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER =
         "CREATE TRIGGER increase_folder_count_on_insert " +
         " AFTER INSERT ON " + TABLE.NOTE +
+        WHEN_FOLDER_COUNT_ACTIVE +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -127,6 +313,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_delete " +
         " AFTER DELETE ON " + TABLE.NOTE +
+        WHEN_FOLDER_COUNT_ACTIVE +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -134,6 +321,96 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
         " END";
 
+    /**
+     * Record the date when note or folder is moved to trash folder
+     */
+    private static final String NOTE_UPDATE_TRASHED_DATE_ON_TRASH_TRIGGER =
+        "CREATE TRIGGER update_trashed_date_on_trash " +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        " AND old." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.TRASHED_DATE + "=strftime('%s','now') * 1000" +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Notes trashed before the bound date and never synced, synced ones are deleted by the
+     * sync after their remote tasks are deleted
+     */
+    private static final String PURGE_TRASH_CHUNK_SQL =
+        "DELETE FROM " + TABLE.NOTE +
+        " WHERE " + NoteColumns.ID + " IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE +
+        "  WHERE " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        "  AND " + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+        "  AND " + NoteColumns.GTASK_ID + "=''" +
+        "  AND " + NoteColumns.TRASHED_DATE + "<?" +
+        "  LIMIT ?)";
+
+    /**
+     * Trash is purged in transactions of so many notes, other writers may go between them
+     */
+    private static final int PURGE_TRASH_CHUNK_SIZE = 100;
+
+    /**
+     * Free pages given back to the file system after each chunk
+     */
+    private static final int INCREMENTAL_VACUUM_PAGES = 256;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Buffer for copying the database file into a snapshot
+     */
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Read transaction of a snapshot before Android R. The framework runs a BEGIN statement as
+     * an exclusive transaction, a savepoint outside a transaction is passed to sqlite as is
+     */
+    private static final String SNAPSHOT_SAVEPOINT = "snapshot";
+
+    /**
+     * Max length of {@link NoteColumns#PREVIEW}, long enough for a line of the notes list
+     */
+    private static final int PREVIEW_MAX_LENGTH = 128;
+
+    /**
+     * Preview of the note row given by the format argument: leading blanks trimmed, capped
+     * at {@link #PREVIEW_MAX_LENGTH} and check list markers stripped. The first line is cut
+     * when it's displayed
+     */
+    private static final String NOTE_PREVIEW_SQL =
+        "CASE WHEN %1$s." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        " THEN REPLACE(REPLACE(SUBSTR(LTRIM(%1$s." + NoteColumns.SNIPPET + ", ' '||x'0A'||x'09'), 1, " +
+            PREVIEW_MAX_LENGTH + "), '\u221A', ''), '\u25A1', '')" +
+        " ELSE %1$s." + NoteColumns.SNIPPET + " END";
+
+    /**
+     * Update note's preview when insert new note
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_note_preview_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + String.format(NOTE_PREVIEW_SQL, "new") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Update note's preview when note's snippet has changed
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_note_preview_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + String.format(NOTE_PREVIEW_SQL, "new") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
     /**
      * Update note's content when insert data with type {@link DataConstants#NOTE}
      */
@@ -173,6 +450,34 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    /**
+     * Mark the note when data with type {@link DataConstants#ATTACHMENT} is inserted
+     */
+    private static final String DATA_UPDATE_NOTE_ATTACHMENT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_note_attachment_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.HAS_ATTACHMENT + "=1" +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Unmark the note when its last data with type {@link DataConstants#ATTACHMENT} is deleted
+     */
+    private static final String DATA_UPDATE_NOTE_ATTACHMENT_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER update_note_attachment_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.HAS_ATTACHMENT + "=EXISTS(SELECT 1 FROM " + TABLE.DATA +
+        "    WHERE " + DataColumns.NOTE_ID + "=old." + DataColumns.NOTE_ID +
+        "    AND " + DataColumns.MIME_TYPE + "='" + DataConstants.ATTACHMENT + "')" +
+        "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -208,33 +513,206 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * Full-text index over notes, the docid of each row is the note's id. The snippet column
+     * mirrors {@link NoteColumns#SNIPPET}, the content column holds the content of the note's
+     * data rows other than {@link DataConstants#NOTE}, whose content is already the snippet
+     */
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE " + TABLE.NOTE_FTS + " USING fts4(" +
+            NoteColumns.SNIPPET + "," +
+            DataColumns.CONTENT + "," +
+            "tokenize=%s" +
+        ")";
+
+    /**
+     * ICU tokenizer splits CJK text into words, fall back to the simple one if it's unavailable
+     */
+    private static final String[] FTS_TOKENIZERS = new String[] { "icu", "simple" };
+
+    private static final String SELECT_NOTE_FTS_CONTENT_SQL =
+        "(SELECT IFNULL(group_concat(" + DataColumns.CONTENT + ", ' '), '') FROM " + TABLE.DATA +
+        "  WHERE " + DataColumns.NOTE_ID + "=%s" +
+        "  AND " + DataColumns.MIME_TYPE + "<>'" + DataConstants.NOTE + "')";
+
+    /**
+     * Add note to the full-text index when insert new note
+     */
+    private static final String NOTE_FTS_INSERT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER note_fts_insert_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + NoteColumns.SNIPPET + "," + DataColumns.CONTENT + ")" +
+        "   VALUES (new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ",'');" +
+        " END";
+
+    /**
+     * Update the full-text index when note's snippet has changed
+     */
+    private static final String NOTE_FTS_UPDATE_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER note_fts_update_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + NoteColumns.SNIPPET + "=new." + NoteColumns.SNIPPET +
+        "  WHERE docid=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Remove note from the full-text index when note has been deleted
+     */
+    private static final String NOTE_FTS_DELETE_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER note_fts_delete_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Update the full-text index when insert data which is not {@link DataConstants#NOTE}
+     */
+    private static final String DATA_UPDATE_NOTE_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_note_fts_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "<>'" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + DataColumns.CONTENT + "=" + String.format(SELECT_NOTE_FTS_CONTENT_SQL, "new." + DataColumns.NOTE_ID) +
+        "  WHERE docid=new." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Update the full-text index when data which is not {@link DataConstants#NOTE} has changed
+     */
+    private static final String DATA_UPDATE_NOTE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_note_fts_on_update " +
+        " AFTER UPDATE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "<>'" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + DataColumns.CONTENT + "=" + String.format(SELECT_NOTE_FTS_CONTENT_SQL, "new." + DataColumns.NOTE_ID) +
+        "  WHERE docid=new." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Update the full-text index when data which is not {@link DataConstants#NOTE} has deleted
+     */
+    private static final String DATA_UPDATE_NOTE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER update_note_fts_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "<>'" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + DataColumns.CONTENT + "=" + String.format(SELECT_NOTE_FTS_CONTENT_SQL, "old." + DataColumns.NOTE_ID) +
+        "  WHERE docid=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Fill the full-text index with the existing notes
+     */
+    private static final String NOTE_FTS_REBUILD_SQL =
+        "INSERT INTO " + TABLE.NOTE_FTS + "(docid," + NoteColumns.SNIPPET + "," + DataColumns.CONTENT + ")" +
+        " SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET + "," +
+            String.format(SELECT_NOTE_FTS_CONTENT_SQL, TABLE.NOTE + "." + NoteColumns.ID) +
+        " FROM " + TABLE.NOTE +
+        " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        " AND " + NoteColumns.ID + ">? AND " + NoteColumns.ID + "<=?" +
+        // notes changed since the table was created are already indexed by the triggers
+        " AND NOT EXISTS (SELECT 1 FROM " + TABLE.NOTE_FTS +
+        "  WHERE docid=" + TABLE.NOTE + "." + NoteColumns.ID + ")";
+
+    /**
+     * Largest id of the next chunk of rows after the given id
+     */
+    private static final String SELECT_CHUNK_END_SQL =
+        "SELECT MAX(" + NoteColumns.ID + ") FROM (SELECT " + NoteColumns.ID + " FROM %s" +
+        " WHERE " + NoteColumns.ID + ">? ORDER BY " + NoteColumns.ID + " LIMIT " +
+        MIGRATION_CHUNK_SIZE + ")";
+
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mProfile = isLowRamDevice(context) ? LOW_RAM_PROFILE : HIGH_RAM_PROFILE;
+        mAttachmentStore = new AttachmentStore(context);
+        setWriteAheadLoggingEnabled(WRITE_AHEAD_LOGGING);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
+        }
+    }
+
+    private static boolean isLowRamDevice(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return true;
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am == null || am.isLowRamDevice();
     }
 
     public void createNoteTable(SQLiteDatabase db) {
+        createMetaTable(db);
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
+        createNoteTableIndexes(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
     }
 
+    /**
+     * Create all triggers of the note table, which needs the columns of the current version.
+     * An upgrade step only creates the triggers of the columns it has added so far
+     */
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
-        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
-        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
-        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_delete");
+        reCreateFolderCountTriggers(db);
+
         db.execSQL("DROP TRIGGER IF EXISTS delete_data_on_delete");
-        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL(NOTE_DELETE_DATA_ON_DELETE_TRIGGER);
+        db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
+        db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+
+        reCreateNotePreviewTriggers(db);
+        reCreateTrashedDateTrigger(db);
+    }
 
+    /**
+     * Folder count triggers check {@link TABLE#META}, since v8
+     */
+    private void reCreateFolderCountTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER);
-        db.execSQL(NOTE_DELETE_DATA_ON_DELETE_TRIGGER);
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
-        db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
-        db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+    }
+
+    /**
+     * Triggers of {@link NoteColumns#PREVIEW}, since v7
+     */
+    private void reCreateNotePreviewTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_preview_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_preview_on_update");
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER);
+    }
+
+    /**
+     * Trigger of {@link NoteColumns#TRASHED_DATE}, since v9
+     */
+    private void reCreateTrashedDateTrigger(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS update_trashed_date_on_trash");
+        db.execSQL(NOTE_UPDATE_TRASHED_DATE_ON_TRASH_TRIGGER);
+    }
+
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
     }
 
     private void createSystemFolder(SQLiteDatabase db) {
@@ -272,6 +750,299 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.insert(TABLE.NOTE, null, values);
     }
 
+    public void createMetaTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_META_TABLE_SQL);
+        Log.d(TAG, "meta table has been created");
+    }
+
+    /**
+     * Suspend the folder count triggers for a bulk operation, must be called inside the
+     * operation's transaction and followed by {@link #resumeFolderCount}, so other
+     * connections never see the suspended state
+     */
+    public void suspendFolderCount(SQLiteDatabase db) {
+        if (!db.inTransaction()) {
+            throw new IllegalStateException("Folder count can only be suspended in transaction");
+        }
+        ContentValues values = new ContentValues();
+        values.put(MetaColumns.KEY, META_KEY_FOLDER_COUNT_SUSPENDED);
+        values.put(MetaColumns.VALUE, "1");
+        db.insertWithOnConflict(TABLE.META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Resume the folder count triggers and recount all folders at once
+     */
+    public void resumeFolderCount(SQLiteDatabase db) {
+        db.delete(TABLE.META, MetaColumns.KEY + "=?",
+                new String[] { META_KEY_FOLDER_COUNT_SUSPENDED });
+        db.execSQL(RECOUNT_FOLDER_NOTES_SQL);
+    }
+
+    /**
+     * Check whether every folder's note count matches a full recount
+     */
+    public boolean checkFolderCount(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, CHECK_FOLDER_COUNT_SQL, null) == 0;
+    }
+
+    /**
+     * Delete the unsynced notes trashed before the given date in small transactions. Databases
+     * created in incremental auto_vacuum mode give the freed pages back to the file system,
+     * older ones keep them for later inserts. The attachments no longer referenced are
+     * deleted after it. Must not be called on the UI thread
+     * @return count of deleted notes, not including the ones deleted with their folders
+     */
+    public int purgeTrash(long trashedBefore) {
+        SQLiteDatabase db = getWritableDatabase();
+        // 已有的数据库不做转换（需要阻塞写入的整库VACUUM），清理出的空页由sqlite复用
+        boolean incremental = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL;
+
+        int count = 0;
+        int deleted;
+        SQLiteStatement statement = db.compileStatement(PURGE_TRASH_CHUNK_SQL);
+        try {
+            do {
+                db.beginTransactionNonExclusive();
+                try {
+                    statement.bindLong(1, trashedBefore);
+                    statement.bindLong(2, PURGE_TRASH_CHUNK_SIZE);
+                    deleted = statement.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                count += deleted;
+                if (incremental) {
+                    incrementalVacuum(db);
+                }
+            } while (deleted == PURGE_TRASH_CHUNK_SIZE);
+        } finally {
+            statement.close();
+        }
+        Log.d(TAG, count + " notes have been purged from trash");
+        // attachments of the purged notes, and of notes deleted since the last purge
+        mAttachmentStore.collectGarbage(db);
+        return count;
+    }
+
+    private void incrementalVacuum(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")", null);
+        try {
+            // the pages are freed while stepping through the pragma
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Progress of {@link #snapshotTo}, called on its thread after each copied chunk
+     */
+    public interface SnapshotProgressListener {
+        void onProgress(int percent);
+    }
+
+    /**
+     * Write a consistent snapshot of the database into a zip file while other connections
+     * keep reading and writing. Must not be called on the UI thread
+     * Since Android R the snapshot is taken by VACUUM INTO on a read transaction, which
+     * never blocks the writer. The sqlite of older releases has no VACUUM INTO, there the
+     * database and its write-ahead log are copied while a read transaction on a connection of
+     * its own pins the snapshot: checkpoints don't write the pages it may read and the log is
+     * not restarted under it, while editing goes on
+     * @param listener may be null
+     */
+    public void snapshotTo(File dest, SnapshotProgressListener listener) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(dest));
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                File vacuumed = new File(dest.getPath() + ".tmp");
+                vacuumed.delete();
+                // a connection of its own, so the vacuum doesn't hold the primary connection
+                SQLiteDatabase reader = SQLiteDatabase.openDatabase(db.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                try {
+                    reader.execSQL("VACUUM INTO "
+                            + DatabaseUtils.sqlEscapeString(vacuumed.getPath()));
+                    SnapshotProgress progress = new SnapshotProgress(listener,
+                            vacuumed.length());
+                    writeSnapshotEntry(out, DB_NAME, vacuumed, progress);
+                } finally {
+                    reader.close();
+                    vacuumed.delete();
+                }
+            } else {
+                File file = new File(db.getPath());
+                File wal = new File(db.getPath() + "-wal");
+                // make the log small before copying, pages in use by readers stay in it
+                checkpoint(db);
+                SQLiteDatabase reader = SQLiteDatabase.openDatabase(db.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                try {
+                    // beginTransaction总是先拿写锁，SAVEPOINT在事务外开始的是延迟事务，
+                    // 读一次之后才真正持有读快照
+                    reader.execSQL("SAVEPOINT " + SNAPSHOT_SAVEPOINT);
+                    try {
+                        DatabaseUtils.longForQuery(reader, "SELECT COUNT(*) FROM sqlite_master",
+                                null);
+                        SnapshotProgress progress = new SnapshotProgress(listener,
+                                file.length() + wal.length());
+                        writeSnapshotEntry(out, DB_NAME, file, progress);
+                        if (wal.exists()) {
+                            writeSnapshotEntry(out, wal.getName(), wal, progress);
+                        }
+                    } finally {
+                        reader.execSQL("RELEASE " + SNAPSHOT_SAVEPOINT);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Log.d(TAG, "database snapshot has been written to " + dest.getPath());
+    }
+
+    /**
+     * TRUNCATE needs sqlite 3.8.8, the sqlite of older releases runs an unknown mode as
+     * PASSIVE, which leaves the log at its size and the snapshot copies all of it
+     */
+    private void checkpoint(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Bytes copied into a snapshot out of the total, reported as percent when it changes
+     */
+    private static class SnapshotProgress {
+        private final SnapshotProgressListener mListener;
+
+        private final long mTotal;
+
+        private long mCopied;
+
+        private int mPercent = -1;
+
+        SnapshotProgress(SnapshotProgressListener listener, long total) {
+            mListener = listener;
+            mTotal = total;
+        }
+
+        void add(long bytes) {
+            mCopied += bytes;
+            int percent = mTotal > 0 ? (int) Math.min(100, mCopied * 100 / mTotal) : 100;
+            if (mListener != null && percent != mPercent) {
+                mPercent = percent;
+                mListener.onProgress(percent);
+            }
+        }
+    }
+
+    private static void writeSnapshotEntry(ZipOutputStream out, String name, File file,
+            SnapshotProgress progress) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[SNAPSHOT_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                progress.add(read);
+            }
+        } finally {
+            in.close();
+        }
+        out.closeEntry();
+    }
+
+    /**
+     * Update notes and increase their version in the same statement. Values and selection
+     * arguments are bound, so the statement only depends on the updated columns and is
+     * reused from the statement cache
+     */
+    static int updateNote(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ");
+        sql.append(TABLE.NOTE);
+        sql.append(" SET ");
+        int argCount = values.size() + (selectionArgs == null ? 0 : selectionArgs.length);
+        Object[] bindArgs = new Object[argCount];
+        int i = 0;
+        for (String column : values.keySet()) {
+            sql.append(column);
+            sql.append("=?,");
+            bindArgs[i++] = values.get(column);
+        }
+        sql.append(NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ");
+            sql.append(selection);
+        }
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                bindArgs[i++] = arg;
+            }
+        }
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (i = 0; i < bindArgs.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+            }
+            int count = statement.executeUpdateDelete();
+            if (count > 0 && values.containsKey(NoteColumns.SNIPPET)) {
+                // the trigger has put the snippet back into the index
+                indexCompressedContent(db, DataColumns.NOTE_ID + " IN (SELECT " + NoteColumns.ID
+                        + " FROM " + TABLE.NOTE
+                        + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")",
+                        selectionArgs);
+            }
+            return count;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * The triggers only index the plain prefix of a compressed content. Put the whole text of
+     * the selected compressed {@link DataConstants#NOTE} rows into the snippet column of the
+     * full-text index, after the statement which ran the triggers
+     * @param selection of the data rows
+     */
+    static void indexCompressedContent(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Cursor c = db.query(TABLE.DATA, new String[] {
+                DataColumns.NOTE_ID, DataColumns.CONTENT, DataColumns.CONTENT_CODEC,
+                DataColumns.COMPRESSED_CONTENT
+        }, DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "' AND "
+                + DataColumns.CONTENT_CODEC + "=" + DataContentCodec.CODEC_DEFLATE
+                + " AND (" + selection + ")", selectionArgs, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.put(NoteColumns.SNIPPET, DataContentCodec.decode(c, 1, 2, 3));
+                db.update(TABLE.NOTE_FTS, values, "docid=?",
+                        new String[] { String.valueOf(c.getLong(0)) });
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     public void createDataTable(SQLiteDatabase db) {
         db.execSQL(CREATE_DATA_TABLE_SQL);
         reCreateDataTableTriggers(db);
@@ -283,10 +1054,51 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_attachment_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_attachment_on_delete");
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_ATTACHMENT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_ATTACHMENT_ON_DELETE_TRIGGER);
+    }
+
+    public void createNoteFtsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        for (int i = 0; i < FTS_TOKENIZERS.length; i++) {
+            try {
+                db.execSQL(String.format(CREATE_NOTE_FTS_TABLE_SQL, FTS_TOKENIZERS[i]));
+                break;
+            } catch (SQLException e) {
+                if (i == FTS_TOKENIZERS.length - 1) {
+                    throw e;
+                }
+                Log.w(TAG, "fts tokenizer " + FTS_TOKENIZERS[i] + " is unavailable");
+            }
+        }
+        reCreateNoteFtsTriggers(db);
+        Log.d(TAG, "note fts table has been created");
+    }
+
+    private void reCreateNoteFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_insert_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_update_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_delete_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_fts_on_delete");
+
+        db.execSQL(NOTE_FTS_INSERT_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_FTS_UPDATE_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_FTS_DELETE_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_FTS_ON_DELETE_TRIGGER);
+    }
+
+    public AttachmentStore getAttachmentStore() {
+        return mAttachmentStore;
     }
 
     static synchronized NotesDatabaseHelper getInstance(Context context) {
@@ -296,10 +1108,39 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         return mInstance;
     }
 
+    PerformanceProfile getPerformanceProfile() {
+        return mProfile;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous=" + SYNCHRONOUS_MODE);
+        // only takes effect on a new database, existing ones keep reusing their free pages
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        // onConfigure只对主连接调用，连接池中的只读连接保持默认值；页大小由框架按默认值设置
+        db.execSQL("PRAGMA cache_size=" + mProfile.cacheSize);
+        db.execSQL("PRAGMA temp_store=" + mProfile.tempStore);
+        // returns the size in effect, which may be capped by the sqlite build
+        Cursor c = db.rawQuery("PRAGMA mmap_size=" + mProfile.mmapSize, null);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (!db.isReadOnly() && hasPendingMigrations(db)) {
+            startMigrations();
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createNoteFtsTable(db);
     }
 
     @Override
@@ -324,6 +1165,41 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            upgradeToV11(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -348,17 +1224,240 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_modified_date_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_modified_date_on_update");
         // add a column for gtask id
-        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.GTASK_ID
-                + " TEXT NOT NULL DEFAULT ''");
+        addColumn(db, TABLE.NOTE, NoteColumns.GTASK_ID, "TEXT NOT NULL DEFAULT ''");
         // add a trash system folder
         ContentValues values = new ContentValues();
         values.put(NoteColumns.ID, Notes.ID_TRASH_FOLER);
         values.put(NoteColumns.TYPE, Notes.TYPE_SYSTEM);
-        db.insert(TABLE.NOTE, null, values);
+        db.insertWithOnConflict(TABLE.NOTE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
     }
 
     private void upgradeToV4(SQLiteDatabase db) {
-        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
-                + " INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, TABLE.NOTE, NoteColumns.VERSION, "INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        createNoteFtsTable(db);
+        scheduleMigration(db, MIGRATION_NOTE_FTS);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        scheduleMigration(db, MIGRATION_INDEXES);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        addColumn(db, TABLE.NOTE, NoteColumns.PREVIEW, "TEXT NOT NULL DEFAULT ''");
+        reCreateNotePreviewTriggers(db);
+        scheduleMigration(db, MIGRATION_NOTE_PREVIEW);
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        createMetaTable(db);
+        reCreateFolderCountTriggers(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        addColumn(db, TABLE.NOTE, NoteColumns.TRASHED_DATE, "INTEGER NOT NULL DEFAULT 0");
+        // the retention of notes already in trash starts from now
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.TRASHED_DATE
+                + "=strftime('%s','now') * 1000"
+                + " WHERE " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER);
+        reCreateTrashedDateTrigger(db);
+    }
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // triggers keeping has_attachment of notes
+        reCreateDataTableTriggers(db);
+    }
+
+    private void upgradeToV11(SQLiteDatabase db) {
+        addColumn(db, TABLE.DATA, DataColumns.CONTENT_CODEC, "INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, TABLE.DATA, DataColumns.COMPRESSED_CONTENT, "BLOB");
+        scheduleMigration(db, MIGRATION_COMPRESS_CONTENT);
+    }
+
+    /**
+     * Add the column unless an interrupted upgrade has already added it
+     */
+    private static void addColumn(SQLiteDatabase db, String table, String column,
+            String definition) {
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = c.getColumnIndexOrThrow("name");
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(name))) {
+                    return;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+    }
+
+    /**
+     * Record a background migration to run from the first row, does nothing if it is
+     * already pending
+     */
+    void scheduleMigration(SQLiteDatabase db, String migration) {
+        // steps before v8 run before the meta table is created by upgradeToV8
+        db.execSQL(CREATE_META_TABLE_SQL);
+        ContentValues values = new ContentValues();
+        values.put(MetaColumns.KEY, META_KEY_MIGRATION_PREFIX + migration);
+        values.put(MetaColumns.VALUE, "0");
+        db.insertWithOnConflict(TABLE.META, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private static boolean hasPendingMigrations(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE.META, new String[] { MetaColumns.KEY },
+                MetaColumns.KEY + " LIKE '" + META_KEY_MIGRATION_PREFIX + "%'",
+                null, null, null, null, "1");
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the largest row id done by the migration, or -1 if it is not pending
+     */
+    private static long getMigrationProgress(SQLiteDatabase db, String migration) {
+        Cursor c = db.query(TABLE.META, new String[] { MetaColumns.VALUE },
+                MetaColumns.KEY + "=?", new String[] { META_KEY_MIGRATION_PREFIX + migration },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private synchronized void startMigrations() {
+        if (mMigrating) {
+            return;
+        }
+        mMigrating = true;
+        new Thread(new Runnable() {
+            public void run() {
+                // 迁移不能和界面线程抢CPU
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    // waits until the database opening this thread has been opened
+                    runPendingMigrations(getWritableDatabase());
+                } catch (SQLException e) {
+                    // continued when the database is opened next time
+                    Log.e(TAG, "Background migration fails", e);
+                } finally {
+                    synchronized (NotesDatabaseHelper.this) {
+                        mMigrating = false;
+                    }
+                }
+            }
+        }, "NotesMigration").start();
+    }
+
+    /**
+     * Run the pending background migrations chunk by chunk, so the app keeps writing between
+     * chunks
+     */
+    void runPendingMigrations(SQLiteDatabase db) {
+        while (runNextMigrationChunk(db)) {
+        }
+    }
+
+    /**
+     * Run the next chunk of the first pending migration, in its own transaction together with
+     * its progress, so an interrupted migration resumes after the last finished chunk
+     * @return false if no migration is pending
+     */
+    boolean runNextMigrationChunk(SQLiteDatabase db) {
+        for (String migration : MIGRATIONS) {
+            long progress = getMigrationProgress(db, migration);
+            if (progress < 0) {
+                continue;
+            }
+            long next;
+            db.beginTransaction();
+            try {
+                next = runMigrationChunk(db, migration, progress);
+                if (next < 0) {
+                    db.delete(TABLE.META, MetaColumns.KEY + "=?",
+                            new String[] { META_KEY_MIGRATION_PREFIX + migration });
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(MetaColumns.VALUE, String.valueOf(next));
+                    db.update(TABLE.META, values, MetaColumns.KEY + "=?",
+                            new String[] { META_KEY_MIGRATION_PREFIX + migration });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (next < 0) {
+                Log.d(TAG, "Background migration " + migration + " is done");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the largest row id done by this chunk, or -1 if the migration is done
+     */
+    private long runMigrationChunk(SQLiteDatabase db, String migration, long progress) {
+        if (MIGRATION_INDEXES.equals(migration)) {
+            // note_id_index is a prefix of the new data index, it serves until that is built
+            db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL);
+            db.execSQL("DROP INDEX IF EXISTS note_id_index");
+            createNoteTableIndexes(db);
+            return -1;
+        }
+
+        String table = MIGRATION_COMPRESS_CONTENT.equals(migration) ? TABLE.DATA : TABLE.NOTE;
+        long end = DatabaseUtils.longForQuery(db, String.format(SELECT_CHUNK_END_SQL, table),
+                new String[] { String.valueOf(progress) });
+        if (end <= progress) {
+            return -1;
+        }
+        Object[] range = new Object[] { progress, end };
+        if (MIGRATION_NOTE_PREVIEW.equals(migration)) {
+            db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PREVIEW + "="
+                    + String.format(NOTE_PREVIEW_SQL, TABLE.NOTE)
+                    + " WHERE " + NoteColumns.ID + ">? AND " + NoteColumns.ID + "<=?", range);
+        } else if (MIGRATION_NOTE_FTS.equals(migration)) {
+            db.execSQL(NOTE_FTS_REBUILD_SQL, range);
+            indexCompressedContent(db, DataColumns.NOTE_ID + ">? AND "
+                    + DataColumns.NOTE_ID + "<=?", new String[] {
+                            String.valueOf(progress), String.valueOf(end)
+                    });
+        } else if (MIGRATION_COMPRESS_CONTENT.equals(migration)) {
+            compressContent(db, progress, end);
+        } else {
+            Log.w(TAG, "Unknown background migration " + migration);
+            return -1;
+        }
+        return end;
+    }
+
+    private void compressContent(SQLiteDatabase db, long start, long end) {
+        Cursor c = db.query(TABLE.DATA, new String[] { DataColumns.ID, DataColumns.CONTENT },
+                DataColumns.ID + ">? AND " + DataColumns.ID + "<=?"
+                        + " AND " + DataColumns.CONTENT_CODEC + "=" + DataContentCodec.CODEC_PLAIN
+                        + " AND length(" + DataColumns.CONTENT + ")>"
+                        + DataContentCodec.COMPRESS_THRESHOLD,
+                new String[] { String.valueOf(start), String.valueOf(end) }, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.put(DataColumns.CONTENT, c.getString(1));
+                db.update(TABLE.DATA, DataContentCodec.encode(values), DataColumns.ID + "=?",
+                        new String[] { String.valueOf(c.getLong(0)) });
+            }
+        } finally {
+            c.close();
+        }
+        indexCompressedContent(db, DataColumns.ID + ">? AND " + DataColumns.ID + "<=?",
+                new String[] { String.valueOf(start), String.valueOf(end) });
     }
 }
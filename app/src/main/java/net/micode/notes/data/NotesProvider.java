@@ -19,21 +19,44 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.Attachment;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * 继承ContentProvider，为不同的应用之间数据共享，提供统一的接口
  */
@@ -43,8 +66,50 @@ public class NotesProvider extends ContentProvider {
 
     private NotesDatabaseHelper mHelper;
 
+    /**
+     * Uris changed by the batch running on current thread, they invalidate the note cache
+     * and are notified once the batch has been committed
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<Set<Uri>>();
+
     private static final String TAG = "NotesProvider";
 
+    /**
+     * Changes following a notification within so long are held back and notified together
+     * at the end of the window, a burst of writes wakes the observers up only once or twice
+     */
+    private static final long NOTIFY_WINDOW_MS = 300;
+
+    /**
+     * During a sync session the changes are notified when the session ends, or at this
+     * interval, so the notes list isn't left stale by a session which is never ended
+     */
+    private static final long SYNC_SESSION_NOTIFY_INTERVAL_MS = 5000;
+
+    /**
+     * Uris waiting for the end of the notify window or sync session, also the lock of the
+     * coalescing state
+     */
+    private final Set<Uri> mPendingUris = new LinkedHashSet<Uri>();
+
+    private long mLastNotifyTime;
+
+    private int mSyncSessions;
+
+    private Handler mNotifyHandler;
+
+    private final Runnable mFlushPendingUris = new Runnable() {
+        public void run() {
+            flushPendingUris();
+        }
+    };
+
+    /**
+     * Bulk operations on at least so many notes suspend the folder count triggers and recount
+     * the folders once instead
+     */
+    private static final int BULK_FOLDER_COUNT_THRESHOLD = 50;
+
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
     private static final int URI_DATA            = 3;
@@ -53,12 +118,19 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_FOLDER_ITEM     = 7;
+
+    private static final int URI_ATTACHMENT      = 8;
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        // system folders have negative ids, which "#" doesn't match
+        mMatcher.addURI(Notes.AUTHORITY, "folder/*", URI_FOLDER_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "attachment/*", URI_ATTACHMENT);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
@@ -68,26 +140,63 @@ public class NotesProvider extends ContentProvider {
      * x'0A' represents the '\n' character in sqlite. For title and content in the search result,
      * we will trim '\n' and white space in order to show more information.
      */
-    private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
-        + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+    private static final String NOTES_SEARCH_PROJECTION = TABLE.NOTE + "." + NoteColumns.ID + ","
+        + TABLE.NOTE + "." + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+        + "TRIM(REPLACE(" + TABLE.NOTE + "." + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "TRIM(REPLACE(" + TABLE.NOTE + "." + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
-        + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
-        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+    /**
+     * Search through the full-text index, the notes are read by the docids of the hits
+     */
+    private static final String NOTES_FTS_SEARCH_FROM = " FROM " + TABLE.NOTE
+        + " JOIN " + TABLE.NOTE_FTS
+        + " ON " + TABLE.NOTE + "." + NoteColumns.ID + "=" + TABLE.NOTE_FTS + ".docid"
+        + " WHERE " + TABLE.NOTE_FTS + " MATCH ?";
+
+    /**
+     * Every hit adds a fixed size entry to offsets(), so the length of it ranks the notes by
+     * how many times the terms matched
+     */
+    private static final String NOTES_FTS_SEARCH_ORDER = " ORDER BY length(offsets("
+        + TABLE.NOTE_FTS + ")) DESC," + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * Search of a pattern with only CJK terms, which reads every note
+     */
+    private static final String NOTES_LIKE_SEARCH_FROM = " FROM " + TABLE.NOTE
+        + " LEFT JOIN " + TABLE.NOTE_FTS
+        + " ON " + TABLE.NOTE + "." + NoteColumns.ID + "=" + TABLE.NOTE_FTS + ".docid"
+        + " WHERE 1";
+
+    /**
+     * A CJK term as a substring of the snippet, or of the indexed snippet which holds the whole
+     * text of compressed notes
+     */
+    private static final String NOTES_SNIPPET_LIKE_SELECTION = " AND ("
+        + TABLE.NOTE + "." + NoteColumns.SNIPPET + " LIKE ?"
+        + " OR " + TABLE.NOTE_FTS + "." + NoteColumns.SNIPPET + " LIKE ?)";
+
+    private static final String NOTES_SEARCH_SELECTION =
+        " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mNotifyHandler = new Handler(Looper.getMainLooper());
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        // 编译好的语句占着数据库连接，关闭前先释放
+        NotesDao.getInstance(getContext()).closeStatements();
+        super.shutdown();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
@@ -104,14 +213,18 @@ public class NotesProvider extends ContentProvider {
                 c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs, null, null, sortOrder);
                 break;
+            case URI_FOLDER_ITEM:
+                c = db.query(TABLE.NOTE, projection, getFolderSelection(parseFolderId(uri))
+                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                break;
             case URI_DATA:
-                c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
+                c = DataContentCursor.query(db, projection, selection, selectionArgs,
                         sortOrder);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = DataContentCursor.query(db, projection, DataColumns.ID + "=" + id
+                        + parseSelection(selection), selectionArgs, sortOrder);
                 break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
@@ -133,12 +246,16 @@ public class NotesProvider extends ContentProvider {
                     return null;
                 }
 
+                ArrayList<String> searchArgs = new ArrayList<String>();
+                String searchQuery = buildSearchQuery(searchString, searchArgs);
+                if (searchQuery == null) {
+                    return null;
+                }
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
-                } catch (IllegalStateException ex) {
-                    Log.e(TAG, "got exception: " + ex.toString());
+                    c = db.rawQuery(searchQuery,
+                            searchArgs.toArray(new String[searchArgs.size()]));
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "search failed: " + ex.toString());
                 }
                 break;
             default:
@@ -164,21 +281,25 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                ContentValues encoded = DataContentCodec.encode(values);
+                insertedId = dataId = db.insert(TABLE.DATA, null, encoded);
+                if (dataId > 0 && DataContentCodec.isCompressed(encoded)) {
+                    NotesDatabaseHelper.indexCompressedContent(db,
+                            DataColumns.ID + "=" + dataId, null);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+            notifyFolders(queryFolderIds(db, NoteColumns.ID + "=" + noteId, null, dataId == 0));
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -189,10 +310,14 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean deleteData = false;
+        Set<Long> noteIds = null;
+        Set<Long> folderIds = null;
+        boolean folderNotesChanged = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
+                folderIds = queryFolderIds(db, selection, selectionArgs, true);
+                folderNotesChanged = selectsFolders(db, selection, selectionArgs);
                 count = db.delete(TABLE.NOTE, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
@@ -205,27 +330,35 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                selection = NoteColumns.ID + "=" + id + parseSelection(selection);
+                folderIds = queryFolderIds(db, selection, selectionArgs, true);
+                folderNotesChanged = selectsFolders(db, selection, selectionArgs);
+                count = db.delete(TABLE.NOTE, selection, selectionArgs);
                 break;
             case URI_DATA:
+                noteIds = queryDataNoteIds(db, selection, selectionArgs);
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
-                deleteData = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
-                deleteData = true;
+                selection = DataColumns.ID + "=" + id + parseSelection(selection);
+                noteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = db.delete(TABLE.DATA, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            if (noteIds != null) {
+                notifyNotes(db, noteIds);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (folderIds != null) {
+                notifyFolders(folderIds);
+            }
+            if (folderNotesChanged) {
+                notifyChange(Notes.CONTENT_NOTE_URI);
+            }
+            notifyChange(uri);
         }
         return count;
     }
@@ -235,74 +368,665 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean updateData = false;
+        Set<Long> noteIds = null;
+        Set<Long> folderIds = null;
+        boolean moved = values != null && values.containsKey(NoteColumns.PARENT_ID);
+        boolean folderNotesChanged = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                folderIds = queryFolderIds(db, selection, selectionArgs, moved);
+                folderNotesChanged = moved && selectsFolders(db, selection, selectionArgs);
+                count = NotesDatabaseHelper.updateNote(db, values, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                selection = NoteColumns.ID + "=?" + parseSelection(selection);
+                selectionArgs = prependArg(id, selectionArgs);
+                folderIds = queryFolderIds(db, selection, selectionArgs, moved);
+                folderNotesChanged = moved && selectsFolders(db, selection, selectionArgs);
+                count = NotesDatabaseHelper.updateNote(db, values, selection, selectionArgs);
                 break;
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
-                updateData = true;
+                noteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = updateData(db, values, selection, selectionArgs, noteIds);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
-                updateData = true;
+                selection = DataColumns.ID + "=" + id + parseSelection(selection);
+                noteIds = queryDataNoteIds(db, selection, selectionArgs);
+                count = updateData(db, values, selection, selectionArgs, noteIds);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         if (count > 0) {
-            if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            if (noteIds != null) {
+                notifyNotes(db, noteIds);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (folderIds != null) {
+                Long parentId = moved ? values.getAsLong(NoteColumns.PARENT_ID) : null;
+                if (parentId != null) {
+                    // the folder moved into, and the list showing its count
+                    folderIds.addAll(queryFolderIds(db, NoteColumns.ID + "=" + parentId, null,
+                            false));
+                    folderIds.add(parentId);
+                }
+                notifyFolders(folderIds);
+            }
+            if (folderNotesChanged) {
+                notifyChange(Notes.CONTENT_NOTE_URI);
+            }
+            notifyChange(uri);
         }
         return count;
     }
 
-    private String parseSelection(String selection) {
-        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    /**
+     * Deleting or trashing a folder also deletes or trashes its notes by triggers, those notes
+     * are notified, and dropped from the note cache, through the note collection uri
+     * @return whether the selected notes include user folders
+     */
+    private boolean selectsFolders(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        return DatabaseUtils.queryNumEntries(db, TABLE.NOTE, NoteColumns.TYPE + "="
+                + Notes.TYPE_FOLDER + parseSelection(selection), selectionArgs) > 0;
+    }
+
+    /**
+     * Update data rows with large contents compressed, and index the whole text of the
+     * compressed ones
+     */
+    private int updateData(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs, Set<Long> noteIds) {
+        ContentValues encoded = DataContentCodec.encode(values);
+        int count = db.update(TABLE.DATA, encoded, selection, selectionArgs);
+        if (count > 0 && !noteIds.isEmpty() && DataContentCodec.isCompressed(encoded)) {
+            NotesDatabaseHelper.indexCompressedContent(db, DataColumns.NOTE_ID + " IN ("
+                    + TextUtils.join(",", noteIds) + ")", null);
+        }
+        return count;
+    }
+
+    /**
+     * @return whether the text has CJK characters, which the tokenizers don't split into words
+     */
+    private static boolean containsCjk(String text) {
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+            if (block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                    || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B
+                    || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                    || block == Character.UnicodeBlock.HIRAGANA
+                    || block == Character.UnicodeBlock.KATAKANA
+                    || block == Character.UnicodeBlock.HANGUL_SYLLABLES) {
+                return true;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /**
+     * Build the search of the user's input, terms are ANDed. Every word is quoted and matched
+     * as a prefix in the full-text index
+     * @param args receives the arguments of the query
+     * @return the query, or null if there is nothing to search
+     */
+    static String buildSearchQuery(String searchString, List<String> args) {
+        StringBuilder match = new StringBuilder();
+        StringBuilder substrings = new StringBuilder();
+        ArrayList<String> substringArgs = new ArrayList<String>();
+        for (String term : searchString.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            // 中日韩文字不分词，全文索引按词的前缀匹配不到其中的片段，只有这些词用LIKE子串匹配，
+            // 有其他词时只检查全文索引命中的便签
+            if (containsCjk(term)) {
+                String like = "%" + term + "%";
+                substrings.append(NOTES_SNIPPET_LIKE_SELECTION);
+                substringArgs.add(like);
+                substringArgs.add(like);
+            } else {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(term).append("*\"");
+            }
+        }
+
+        StringBuilder query = new StringBuilder("SELECT ");
+        query.append(NOTES_SEARCH_PROJECTION);
+        if (match.length() > 0) {
+            query.append(NOTES_FTS_SEARCH_FROM);
+            args.add(match.toString());
+        } else if (substrings.length() > 0) {
+            query.append(NOTES_LIKE_SEARCH_FROM);
+        } else {
+            return null;
+        }
+        query.append(substrings);
+        args.addAll(substringArgs);
+        query.append(NOTES_SEARCH_SELECTION);
+        if (match.length() > 0) {
+            query.append(NOTES_FTS_SEARCH_ORDER);
+        }
+        return query.toString();
+    }
+
+    /**
+     * Move, trash, restore or delete a set of notes with a single statement, which also
+     * increases their version. System folders are never touched. Or purge the trash
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_PURGE_TRASH.equals(method)) {
+            return purgeTrash(extras);
+        }
+        if (Notes.METHOD_SNAPSHOT_DATABASE.equals(method)) {
+            return snapshotDatabase(arg, extras);
+        }
+        Bundle lookup = lookup(method, arg, extras);
+        if (lookup != null) {
+            return lookup;
+        }
+        if (Notes.METHOD_NOTIFY_CHANGED.equals(method)) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(Notes.CONTENT_DATA_URI);
+            notifyChange(Notes.CONTENT_FOLDER_URI);
+            return null;
+        }
+        if (Notes.METHOD_BEGIN_SYNC_SESSION.equals(method)) {
+            synchronized (mPendingUris) {
+                mSyncSessions++;
+            }
+            return null;
+        }
+        if (Notes.METHOD_END_SYNC_SESSION.equals(method)) {
+            boolean ended;
+            synchronized (mPendingUris) {
+                if (mSyncSessions > 0) {
+                    mSyncSessions--;
+                }
+                ended = mSyncSessions == 0;
+            }
+            if (ended) {
+                flushPendingUris();
+            }
+            return null;
+        }
+
+        long[] ids = extras != null ? extras.getLongArray(Notes.EXTRA_NOTE_IDS) : null;
+        if (ids == null) {
+            throw new IllegalArgumentException("Method " + method + " requires note ids");
+        }
+
+        String where = " WHERE " + NoteColumns.ID + " IN (" + joinIds(ids) + ")"
+                + " AND " + NoteColumns.ID + ">0";
+        String moveSql = NoteColumns.PARENT_ID + "=?,"
+                + NoteColumns.LOCAL_MODIFIED + "=1,"
+                + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+                + where + " AND " + NoteColumns.PARENT_ID + "<>?";
+        SQLiteStatement statement;
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (Notes.METHOD_MOVE_NOTES.equals(method)) {
+            long folderId = extras.getLong(Notes.EXTRA_FOLDER_ID, Notes.ID_ROOT_FOLDER);
+            statement = db.compileStatement("UPDATE " + TABLE.NOTE + " SET " + moveSql);
+            statement.bindLong(1, folderId);
+            statement.bindLong(2, folderId);
+        } else if (Notes.METHOD_TRASH_NOTES.equals(method)) {
+            // only the move into trash records the folder to restore to
+            statement = db.compileStatement("UPDATE " + TABLE.NOTE + " SET "
+                    + NoteColumns.ORIGIN_PARENT_ID + "=" + NoteColumns.PARENT_ID + "," + moveSql);
+            statement.bindLong(1, Notes.ID_TRASH_FOLER);
+            statement.bindLong(2, Notes.ID_TRASH_FOLER);
+        } else if (Notes.METHOD_RESTORE_NOTES.equals(method)) {
+            // back to the original folder if it's still visible, otherwise to the root folder
+            statement = db.compileStatement("UPDATE " + TABLE.NOTE + " SET "
+                    + NoteColumns.PARENT_ID + "=CASE WHEN " + NoteColumns.ORIGIN_PARENT_ID
+                    + " IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                    + " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE
+                    + " AND " + NoteColumns.ID + "<>" + Notes.ID_TRASH_FOLER
+                    + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ")"
+                    + " THEN " + NoteColumns.ORIGIN_PARENT_ID
+                    + " ELSE " + Notes.ID_ROOT_FOLDER + " END,"
+                    + NoteColumns.LOCAL_MODIFIED + "=1,"
+                    + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+                    + where + " AND " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER);
+        } else if (Notes.METHOD_DELETE_NOTES.equals(method)) {
+            statement = db.compileStatement("DELETE FROM " + TABLE.NOTE + where);
+        } else {
+            throw new IllegalArgumentException("Unknown method " + method);
+        }
+
+        int count;
+        Set<Long> folderIds;
+        boolean bulk = ids.length >= BULK_FOLDER_COUNT_THRESHOLD;
+        String idSelection = NoteColumns.ID + " IN (" + joinIds(ids) + ")";
+        db.beginTransactionNonExclusive();
+        try {
+            folderIds = queryFolderIds(db, idSelection, null, true);
+            if (bulk) {
+                mHelper.suspendFolderCount(db);
+            }
+            count = statement.executeUpdateDelete();
+            if (bulk) {
+                mHelper.resumeFolderCount(db);
+            }
+            if (!Notes.METHOD_DELETE_NOTES.equals(method)) {
+                folderIds.addAll(queryFolderIds(db, idSelection, null, true));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyFolders(folderIds);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(Notes.RESULT_COUNT, count);
+        return result;
+    }
+
+    private Bundle purgeTrash(Bundle extras) {
+        long trashedBefore = extras != null ? extras.getLong(Notes.EXTRA_TRASHED_BEFORE, 0) : 0;
+        int count = mHelper.purgeTrash(trashedBefore);
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI,
+                    Notes.ID_TRASH_FOLER));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(Notes.RESULT_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Look up the values of the lookup methods through the compiled statements of NotesDao
+     * @return null if the method isn't a lookup method
+     */
+    private Bundle lookup(String method, String arg, Bundle extras) {
+        Bundle result = new Bundle();
+        if (Notes.METHOD_EXIST_NOTES.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(Notes.EXTRA_NOTE_IDS) : null;
+            if (ids == null) {
+                throw new IllegalArgumentException("Method " + method + " requires note ids");
+            }
+            int type = extras.getInt(Notes.EXTRA_NOTE_TYPE, -1);
+            result.putLongArray(Notes.RESULT_NOTE_IDS,
+                    NotesDao.getInstance(getContext()).filterExistingNotes(ids, type));
+        } else if (Notes.METHOD_EXIST_DATA.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(Notes.EXTRA_DATA_IDS) : null;
+            if (ids == null) {
+                throw new IllegalArgumentException("Method " + method + " requires data ids");
+            }
+            result.putLongArray(Notes.RESULT_DATA_IDS,
+                    NotesDao.getInstance(getContext()).filterExistingData(ids));
+        } else if (Notes.METHOD_GET_SNIPPET.equals(method)) {
+            result.putString(Notes.RESULT_SNIPPET,
+                    NotesDao.getInstance(getContext()).getSnippet(Long.parseLong(arg)));
+        } else if (Notes.METHOD_COUNT_USER_FOLDERS.equals(method)) {
+            result.putInt(Notes.RESULT_COUNT,
+                    NotesDao.getInstance(getContext()).getUserFolderCount());
+        } else if (Notes.METHOD_COUNT_FOLDER_NAME.equals(method)) {
+            result.putInt(Notes.RESULT_COUNT,
+                    NotesDao.getInstance(getContext()).getVisibleFolderCount(arg));
+        } else {
+            return null;
+        }
+        return result;
+    }
+
+    private Bundle snapshotDatabase(String path, Bundle extras) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("Snapshot requires a file path");
+        }
+        NotesDatabaseHelper.SnapshotProgressListener listener = null;
+        final ResultReceiver receiver = extras == null ? null
+                : (ResultReceiver) extras.getParcelable(Notes.EXTRA_PROGRESS_RECEIVER);
+        if (receiver != null) {
+            listener = new NotesDatabaseHelper.SnapshotProgressListener() {
+                @Override
+                public void onProgress(int percent) {
+                    Bundle progress = new Bundle();
+                    progress.putInt(Notes.RESULT_PROGRESS, percent);
+                    receiver.send(0, progress);
+                }
+            };
+        }
+        boolean success = false;
+        try {
+            mHelper.snapshotTo(new File(path), listener);
+            success = true;
+        } catch (IOException e) {
+            Log.e(TAG, "snapshot database failed: " + e.toString());
+        } catch (SQLiteException e) {
+            Log.e(TAG, "snapshot database failed: " + e.toString());
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(Notes.RESULT_SUCCESS, success);
+        return result;
+    }
+
+    private static String joinIds(long[] ids) {
+        StringBuilder sb = new StringBuilder(ids.length * 8);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String joinIds(Collection<Long> ids) {
+        StringBuilder sb = new StringBuilder(ids.size() * 8);
+        for (long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Apply all the operations in one transaction, the change notifications are sent once
+     * per collection after the transaction has been committed
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        boolean bulk = operations.size() >= BULK_FOLDER_COUNT_THRESHOLD;
+        boolean successful = false;
+        try {
+            if (bulk) {
+                mHelper.suspendFolderCount(db);
+            }
+            ContentProviderResult[] results = super.applyBatch(operations);
+            if (bulk) {
+                mHelper.resumeFolderCount(db);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            endBatch(db, successful);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        boolean bulk = values.length >= BULK_FOLDER_COUNT_THRESHOLD;
+        boolean successful = false;
+        int count = 0;
+        try {
+            if (bulk) {
+                mHelper.suspendFolderCount(db);
+            }
+            for (ContentValues value : values) {
+                if (ContentUris.parseId(insert(uri, value)) > 0) {
+                    count++;
+                }
+            }
+            if (bulk) {
+                mHelper.resumeFolderCount(db);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(db, successful);
+        }
+        return count;
+    }
+
+    private void beginBatch(SQLiteDatabase db) {
+        db.beginTransactionNonExclusive();
+        if (mBatchChangedUris.get() == null) {
+            mBatchChangedUris.set(new LinkedHashSet<Uri>());
+        }
+    }
+
+    private void endBatch(SQLiteDatabase db, boolean successful) {
+        db.endTransaction();
+        if (db.inTransaction()) {
+            // nested in an outer batch, it will notify when it ends
+            return;
+        }
+        Set<Uri> uris = mBatchChangedUris.get();
+        mBatchChangedUris.remove();
+        if (successful && uris != null) {
+            NoteCache cache = NoteCache.getInstance(getContext());
+            Set<Uri> coalescedUris = new LinkedHashSet<Uri>();
+            for (Uri uri : uris) {
+                cache.invalidate(uri);
+                coalescedUris.add(coalesceUri(uri));
+            }
+            for (Uri uri : coalescedUris) {
+                postNotifyChange(uri);
+            }
+        }
+    }
+
+    /**
+     * Notify the change of uri, or defer it if a batch is running on current thread. The note
+     * cache is invalidated right after the change is committed, before the notification
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchUris = mBatchChangedUris.get();
+        if (batchUris == null) {
+            NoteCache.getInstance(getContext()).invalidate(uri);
+            postNotifyChange(uri);
+            return;
+        }
+        batchUris.add(uri);
+    }
+
+    /**
+     * Notify the change of uri right away if nothing has been notified within the window and
+     * no sync session is running, otherwise add it to the pending uris
+     */
+    private void postNotifyChange(Uri uri) {
+        synchronized (mPendingUris) {
+            long now = SystemClock.uptimeMillis();
+            if (mSyncSessions == 0 && mPendingUris.isEmpty()
+                    && now - mLastNotifyTime >= NOTIFY_WINDOW_MS) {
+                mLastNotifyTime = now;
+            } else {
+                if (mPendingUris.isEmpty()) {
+                    mNotifyHandler.postAtTime(mFlushPendingUris, mSyncSessions > 0
+                            ? now + SYNC_SESSION_NOTIFY_INTERVAL_MS
+                            : mLastNotifyTime + NOTIFY_WINDOW_MS);
+                }
+                mPendingUris.add(coalesceUri(uri));
+                return;
+            }
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
+    private void flushPendingUris() {
+        Uri[] uris;
+        synchronized (mPendingUris) {
+            mNotifyHandler.removeCallbacks(mFlushPendingUris);
+            uris = mPendingUris.toArray(new Uri[mPendingUris.size()]);
+            mPendingUris.clear();
+            mLastNotifyTime = SystemClock.uptimeMillis();
+        }
+        for (Uri uri : uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
 
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+    /**
+     * The uri of a note or data item is replaced by its collection, whose observers include
+     * the item's, so deferred changes of many items are notified once. Folder uris are kept,
+     * so other folders' observers are not notified
+     */
+    private static Uri coalesceUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() > 1 && mMatcher.match(uri) != URI_FOLDER_ITEM) {
+            uri = uri.buildUpon().path(segments.get(0)).build();
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+        return uri;
+    }
+
+    private void notifyFolders(Set<Long> folderIds) {
+        if (folderIds.contains((long) Notes.ID_CALL_RECORD_FOLDER)) {
+            // the root folder's list shows the call record folder
+            folderIds.add((long) Notes.ID_ROOT_FOLDER);
+        }
+        for (long folderId : folderIds) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, folderId));
         }
-        if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+    }
+
+    /**
+     * Notify the notes whose data changed, and the folders showing their snippets
+     */
+    private void notifyNotes(SQLiteDatabase db, Set<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            return;
+        }
+        for (long noteId : noteIds) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        }
+        notifyFolders(queryFolderIds(db, NoteColumns.ID + " IN (" + joinIds(noteIds) + ")",
+                null, false));
+    }
+
+    /**
+     * Get the folders whose list shows the selected notes, and the folders themselves if
+     * folders are selected, since their notes go with them. If the number of notes in those
+     * folders changes, also the folders whose list shows their count
+     */
+    private Set<Long> queryFolderIds(SQLiteDatabase db, String selection,
+            String[] selectionArgs, boolean countChanged) {
+        Set<Long> folderIds = new HashSet<Long>();
+        Cursor c = db.query(TABLE.NOTE, new String[] {
+                NoteColumns.ID, NoteColumns.PARENT_ID, NoteColumns.TYPE
+        }, selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                folderIds.add(c.getLong(1));
+                if (c.getInt(2) != Notes.TYPE_NOTE) {
+                    folderIds.add(c.getLong(0));
+                }
             }
-            sql.append(selectString);
+        } finally {
+            c.close();
         }
+        if (countChanged && !folderIds.isEmpty()) {
+            c = db.query(true, TABLE.NOTE, new String[] { NoteColumns.PARENT_ID },
+                    NoteColumns.ID + " IN (" + joinIds(folderIds) + ")", null, null, null,
+                    null, null);
+            try {
+                while (c.moveToNext()) {
+                    folderIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return folderIds;
+    }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+    private Set<Long> queryDataNoteIds(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Set<Long> noteIds = new HashSet<Long>();
+        Cursor c = db.query(true, TABLE.DATA, new String[] { DataColumns.NOTE_ID }, selection,
+                selectionArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                noteIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return noteIds;
+    }
+
+    /**
+     * @return the folder id of a folder uri
+     * @throws IllegalArgumentException if the last segment isn't a number
+     */
+    private static long parseFolderId(Uri uri) {
+        try {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * The notes listed in a folder. The root folder also lists the call record folder, which
+     * the caller's selection may show or hide
+     */
+    static String getFolderSelection(long folderId) {
+        if (folderId == Notes.ID_ROOT_FOLDER) {
+            return "(" + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + " OR "
+                    + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + ")";
+        }
+        return NoteColumns.PARENT_ID + "=" + folderId;
+    }
+
+    private String parseSelection(String selection) {
+        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    }
+
+    private static String[] prependArg(String arg, String[] args) {
+        if (args == null || args.length == 0) {
+            return new String[] { arg };
+        }
+        String[] result = new String[args.length + 1];
+        result[0] = arg;
+        System.arraycopy(args, 0, result, 1, args.length);
+        return result;
+    }
+
+    /**
+     * Open an attachment for reading. The descriptor of the stored file is handed out, so the
+     * bytes never go through this process
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (mMatcher.match(uri) != URI_ATTACHMENT) {
+            throw new FileNotFoundException("No files supported by provider at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Attachments are read only, mode: " + mode);
+        }
+        File file = mHelper.getAttachmentStore().getFile(uri.getLastPathSegment());
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
     }
 
     @Override
     public String getType(Uri uri) {
-        // TODO Auto-generated method stub
-        return null;
+        if (mMatcher.match(uri) != URI_ATTACHMENT) {
+            return null;
+        }
+        Cursor c = mHelper.getReadableDatabase().query(TABLE.DATA,
+                new String[] { Attachment.CONTENT_MIME_TYPE },
+                Attachment.MIME_TYPE + "=? AND " + Attachment.HASH + "=?",
+                new String[] { Attachment.CONTENT_ITEM_TYPE, uri.getLastPathSegment() },
+                null, null, null, "1");
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
     }
 
 }
@@ -16,19 +16,15 @@
 
 package net.micode.notes.gtask.data;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
-import net.micode.notes.data.Notes;
+import net.micode.notes.data.DataContentCodec;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
-import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.data.NotesDao;
 import net.micode.notes.gtask.exception.ActionFailureException;
 
 import org.json.JSONException;
@@ -42,7 +38,7 @@ public class SqlData {
 
     public static final String[] PROJECTION_DATA = new String[] {
             DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
-            DataColumns.DATA3
+            DataColumns.DATA3, DataColumns.CONTENT_CODEC, DataColumns.COMPRESSED_CONTENT
     };
 
     public static final int DATA_ID_COLUMN = 0;
@@ -54,8 +50,12 @@ public class SqlData {
     public static final int DATA_CONTENT_DATA_1_COLUMN = 3;
 
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
+
+    public static final int DATA_CONTENT_CODEC_COLUMN = 5;
+
+    public static final int DATA_COMPRESSED_CONTENT_COLUMN = 6;
     /** 此处的ctx是GTaskSyncService，只有那个服务调用了这里 */
-    private ContentResolver mContentResolver;
+    private NotesDao mDao;
 
     private boolean mIsCreate;
 
@@ -72,7 +72,7 @@ public class SqlData {
     private ContentValues mDiffDataValues;
 
     public SqlData(Context context) {
-        mContentResolver = context.getContentResolver();
+        mDao = NotesDao.getInstance(context);
         mIsCreate = true;
         mDataId = INVALID_ID;
         mDataMimeType = DataConstants.NOTE;
@@ -83,16 +83,30 @@ public class SqlData {
     }
 
     public SqlData(Context context, Cursor c) {
-        mContentResolver = context.getContentResolver();
+        mDao = NotesDao.getInstance(context);
         mIsCreate = false;
         loadFromCursor(c);
         mDiffDataValues = new ContentValues();
     }
 
+    /**
+     * @return mapper of the rows queried with {@link #PROJECTION_DATA}
+     */
+    public static NotesDao.RowMapper<SqlData> getRowMapper(final Context context) {
+        return new NotesDao.RowMapper<SqlData>() {
+            @Override
+            public SqlData mapRow(Cursor c) {
+                return new SqlData(context, c);
+            }
+        };
+    }
+
     private void loadFromCursor(Cursor c) {
         mDataId = c.getLong(DATA_ID_COLUMN);
         mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN);
-        mDataContent = c.getString(DATA_CONTENT_COLUMN);
+        // 同步的是完整内容
+        mDataContent = DataContentCodec.decode(c, DATA_CONTENT_COLUMN, DATA_CONTENT_CODEC_COLUMN,
+                DATA_COMPRESSED_CONTENT_COLUMN);
         mDataContentData1 = c.getLong(DATA_CONTENT_DATA_1_COLUMN);
         mDataContentData3 = c.getString(DATA_CONTENT_DATA_3_COLUMN);
     }
@@ -152,27 +166,15 @@ public class SqlData {
             }
 
             mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
+            mDataId = mDao.insertData(mDiffDataValues);
+            if (mDataId == -1) {
+                Log.e(TAG, "Get data id error");
                 throw new ActionFailureException("create note failed");
             }
         } else {
             if (mDiffDataValues.size() > 0) {
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
-                                    String.valueOf(noteId), String.valueOf(version)
-                            });
-                }
+                int result = mDao.updateData(mDataId, mDiffDataValues, noteId,
+                        validateVersion ? version : -1);
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
                 }
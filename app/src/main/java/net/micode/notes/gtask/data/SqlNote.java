@@ -17,16 +17,15 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDao;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
@@ -88,7 +87,7 @@ public class SqlNote {
 
     private Context mContext;
 
-    private ContentResolver mContentResolver;
+    private NotesDao mDao;
 
     private boolean mIsCreate;
 
@@ -124,7 +123,7 @@ public class SqlNote {
 
     public SqlNote(Context context) {
         mContext = context;
-        mContentResolver = context.getContentResolver();
+        mDao = NotesDao.getInstance(context);
         mIsCreate = true;
         mId = INVALID_ID;
         mAlertDate = 0;
@@ -145,7 +144,7 @@ public class SqlNote {
 
     public SqlNote(Context context, Cursor c) {
         mContext = context;
-        mContentResolver = context.getContentResolver();
+        mDao = NotesDao.getInstance(context);
         mIsCreate = false;
         loadFromCursor(c);
         mDataList = new ArrayList<SqlData>();
@@ -156,7 +155,7 @@ public class SqlNote {
 
     public SqlNote(Context context, long id) {
         mContext = context;
-        mContentResolver = context.getContentResolver();
+        mDao = NotesDao.getInstance(context);
         mIsCreate = false;
         loadFromCursor(id);
         mDataList = new ArrayList<SqlData>();
@@ -166,22 +165,29 @@ public class SqlNote {
 
     }
 
+    /**
+     * @return mapper of the rows queried with {@link #PROJECTION_NOTE}, the data of notes is
+     * loaded too
+     */
+    public static NotesDao.RowMapper<SqlNote> getRowMapper(final Context context) {
+        return new NotesDao.RowMapper<SqlNote>() {
+            @Override
+            public SqlNote mapRow(Cursor c) {
+                return new SqlNote(context, c);
+            }
+        };
+    }
+
     private void loadFromCursor(long id) {
-        Cursor c = null;
-        try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, PROJECTION_NOTE, "(_id=?)",
-                    new String[] {
-                        String.valueOf(id)
-                    }, null);
-            if (c != null) {
-                c.moveToNext();
+        SqlNote note = mDao.queryNote(id, PROJECTION_NOTE, new NotesDao.RowMapper<SqlNote>() {
+            @Override
+            public SqlNote mapRow(Cursor c) {
                 loadFromCursor(c);
-            } else {
-                Log.w(TAG, "loadFromCursor: cursor = null");
+                return SqlNote.this;
             }
-        } finally {
-            if (c != null)
-                c.close();
+        });
+        if (note == null) {
+            Log.w(TAG, "loadFromCursor: no note " + id);
         }
     }
 
@@ -201,28 +207,14 @@ public class SqlNote {
     }
 
     private void loadDataContent() {
-        Cursor c = null;
         mDataList.clear();
-        try {
-            c = mContentResolver.query(Notes.CONTENT_DATA_URI, SqlData.PROJECTION_DATA,
-                    "(note_id=?)", new String[] {
-                        String.valueOf(mId)
-                    }, null);
-            if (c != null) {
-                if (c.getCount() == 0) {
-                    Log.w(TAG, "it seems that the note has not data");
-                    return;
-                }
-                while (c.moveToNext()) {
-                    SqlData data = new SqlData(mContext, c);
-                    mDataList.add(data);
-                }
-            } else {
-                Log.w(TAG, "loadDataContent: cursor = null");
-            }
-        } finally {
-            if (c != null)
-                c.close();
+        // 附件的文件不同步，它们的行也不上传
+        mDataList.addAll(mDao.queryData(SqlData.PROJECTION_DATA, DataColumns.NOTE_ID + "=? AND "
+                + DataColumns.MIME_TYPE + "<>?", new String[] {
+                        String.valueOf(mId), Notes.Attachment.CONTENT_ITEM_TYPE
+                }, null, SqlData.getRowMapper(mContext)));
+        if (mDataList.isEmpty()) {
+            Log.w(TAG, "it seems that the note has not data");
         }
     }
 
@@ -333,6 +325,11 @@ public class SqlNote {
 
                 for (int i = 0; i < dataArray.length(); i++) {
                     JSONObject data = dataArray.getJSONObject(i);
+                    if (Notes.Attachment.CONTENT_ITEM_TYPE.equals(
+                            data.optString(DataColumns.MIME_TYPE))) {
+                        // the file it refers to is never synced
+                        continue;
+                    }
                     SqlData sqlData = null;
                     if (data.has(DataColumns.ID)) {
                         long dataId = data.getLong(DataColumns.ID);
@@ -446,11 +443,9 @@ public class SqlNote {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
+            mId = mDao.insertNote(mDiffNoteValues);
+            if (mId == -1) {
+                Log.e(TAG, "Get note id error");
                 throw new ActionFailureException("create note failed");
             }
             if (mId == 0) {
@@ -469,19 +464,8 @@ public class SqlNote {
             }
             if (mDiffNoteValues.size() > 0) {
                 mVersion ++;
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[] {
-                        String.valueOf(mId)
-                    });
-                } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[] {
-                                    String.valueOf(mId), String.valueOf(mVersion)
-                            });
-                }
+                int result = mDao.updateNote(mId, mDiffNoteValues,
+                        validateVersion ? mVersion : -1);
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
                 }
@@ -22,6 +22,7 @@ import android.accounts.AccountManagerFuture;
 import android.app.Activity;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
 
 import net.micode.notes.gtask.data.Node;
@@ -32,33 +33,16 @@ import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
 
 /** 网络层工具类，对接谷歌日历/任务 */
 public class GTaskClient {
@@ -70,9 +54,22 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    /**
+     * Requests which may run at the same time, e.g. downloading several task lists
+     */
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    /**
+     * Creates, updates, moves and deletes are sent together in a request until there are
+     * this many actions or chars
+     */
+    private static final int MAX_BATCH_ACTIONS = 100;
+
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private GTaskTransport mTransport;
 
     private String mGetUrl;
 
@@ -90,8 +87,24 @@ public class GTaskClient {
 
     private JSONArray mUpdateArray;
 
+    /**
+     * Estimated json length of {@link #mUpdateArray}
+     */
+    private int mUpdateChars;
+
+    /**
+     * Nodes created by the actions in {@link #mUpdateArray}, by action id
+     */
+    private LinkedHashMap<String, Node> mPendingCreates;
+
+    /**
+     * Gids of the task lists changed by the queued actions since the last
+     * {@link #takeWrittenListGids}
+     */
+    private HashSet<String> mWrittenListGids;
+
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = null;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
@@ -100,6 +113,9 @@ public class GTaskClient {
         mActionId = 1;
         mAccount = null;
         mUpdateArray = null;
+        mUpdateChars = 0;
+        mPendingCreates = new LinkedHashMap<String, Node>();
+        mWrittenListGids = new HashSet<String>();
     }
     /** 拿单例 */
     public static synchronized GTaskClient getInstance() {
@@ -224,30 +240,23 @@ public class GTaskClient {
         }
         return true;
     }
-    /** 用给定的令牌登录谷歌任务（GTask），返回是否登录成功，写入mClientVersion，cookie可能会写入mHttpClient */
-    private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+    /**
+     * 用给定的令牌登录谷歌任务（GTask），返回是否登录成功，写入mClientVersion，cookie保存在mTransport中。
+     * 测试中配合setTransport直接调用
+     */
+    boolean loginGtask(String authToken) {
+        GTaskTransport transport = getTransport();
+        transport.resetSession();
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            InputStream input = transport.get(loginUrl);
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
             boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
+            for (String name : transport.getCookieNames()) {
+                if (name.contains("GTL")) {
                     hasAuthCookie = true;
                 }
             }
@@ -256,17 +265,23 @@ public class GTaskClient {
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            JsonReader reader = GTaskJsonCodec.openSetup(input);
+            try {
+                mClientVersion = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("v".equals(reader.nextName())) {
+                        mClientVersion = reader.nextLong();
+                        break;
+                    }
+                    reader.skipValue();
+                }
+            } finally {
+                reader.close();
+            }
+            if (mClientVersion == -1) {
+                throw new JSONException("no client version in the task page");
             }
-            JSONObject js = new JSONObject(jsString);
-            mClientVersion = js.getLong("v");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -277,74 +292,37 @@ public class GTaskClient {
             return false;
         }
 
+        mLoggedin = true;
         return true;
     }
     /** 自增计数器生成action id */
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++;
     }
-    /** 构造urlencoded的form请求头  */
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
-    }
-    /** 处理HTTP gzip / deflate 压缩，返回请求正文 */
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
-        }
-
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
-        }
-
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
-            }
-        } finally {
-            input.close();
+    /** 取传输层，没有设置时使用HttpClientTransport，整个进程共用 */
+    private synchronized GTaskTransport getTransport() {
+        if (mTransport == null) {
+            mTransport = new HttpClientTransport();
         }
+        return mTransport;
+    }
+    /** 替换传输层，比如测试时换成进程内的替身服务器，之后需要重新登录 */
+    public synchronized void setTransport(GTaskTransport transport) {
+        mTransport = transport;
+        mLoggedin = false;
     }
-    /** 把json序列化为字符串，然后以form形式发送(application/json不行吗) */
+    /** 把json以form形式发送(application/json不行吗)，请求和响应都流式编解码 */
     private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
+            InputStream input = getTransport().post(mPostUrl, GTaskJsonCodec.encodeForm("r", js));
+            return GTaskJsonCodec.readObject(input);
 
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -359,59 +337,22 @@ public class GTaskClient {
             throw new ActionFailureException("error occurs when posting request");
         }
     }
-    /** 构造一个Task请求，如果成功则写入task的mGid */
+    /** 把Task的创建动作加入批量请求，提交后写入task的mGid */
     public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+        // the list of the task is always created at once, so the task can refer to it
+        ensureCreated(task.getParent());
+        markWritten(task);
+        queueCreate(task, task.getCreateAction(getActionId()));
     }
     /** 构造并向远端发送任务表，将gid结果写回 */
     public void createTaskList(TaskList tasklist) throws NetworkFailureException {
+        // 任务表的gid要马上作为key使用，连同之前积累的动作一起立即提交
+        queueCreate(tasklist, tasklist.getCreateAction(getActionId()));
         commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
-        }
     }
-    /** 提交现有更新操作 */
+    /**
+     * 提交现有的批量动作，并把返回的new_id写回其中创建的节点
+     */
     public void commitUpdate() throws NetworkFailureException {
         if (mUpdateArray != null) {
             try {
@@ -423,8 +364,17 @@ public class GTaskClient {
                 // client_version
                 jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-                postRequest(jsPost);
+                JSONObject jsResponse = postRequest(jsPost);
+                Log.d(TAG, "committed " + mUpdateArray.length() + " actions");
+                LinkedHashMap<String, Node> creates = new LinkedHashMap<String, Node>(
+                        mPendingCreates);
                 mUpdateArray = null;
+                mUpdateChars = 0;
+                mPendingCreates.clear();
+                if (!creates.isEmpty()) {
+                    setCreatedGids(jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS),
+                            creates);
+                }
             } catch (JSONException e) {
                 Log.e(TAG, e.toString());
                 e.printStackTrace();
@@ -432,27 +382,41 @@ public class GTaskClient {
             }
         }
     }
+    /**
+     * 按action_id把new_id写回创建的节点，没有action_id的结果按创建动作的顺序对应
+     */
+    private static void setCreatedGids(JSONArray jsResults, LinkedHashMap<String, Node> creates)
+            throws JSONException {
+        for (int i = 0; i < jsResults.length(); i++) {
+            JSONObject jsResult = jsResults.getJSONObject(i);
+            if (!jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID) || creates.isEmpty()) {
+                continue;
+            }
+            Node node = creates.remove(jsResult.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            if (node == null) {
+                Iterator<Node> iter = creates.values().iterator();
+                node = iter.next();
+                iter.remove();
+            }
+            node.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        }
+        if (!creates.isEmpty()) {
+            throw new ActionFailureException(creates.size() + " created nodes got no new id");
+        }
+    }
     /** 增加一条更新操作动作 */
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            ensureCreated(node);
+            markWritten(node);
+            queueAction(node.getUpdateAction(getActionId()));
         }
     }
     /** 向远端报告一个移动任务动作，将任务task从preParent移动到curParent中 */
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
+        ensureCreated(task);
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
             // action_list
@@ -471,13 +435,9 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
+            mWrittenListGids.add(preParent.getGid());
+            mWrittenListGids.add(curParent.getGid());
+            queueAction(action);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -487,26 +447,60 @@ public class GTaskClient {
     }
     /** 删除一个节点 */
     public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+        ensureCreated(node);
+        markWritten(node);
+        node.setDeleted(true);
+        queueAction(node.getUpdateAction(getActionId()));
+    }
+    /**
+     * 动作引用的节点还在等待创建时先提交，得到它的gid。同一批中后创建的任务的
+     * prior_sibling还没有gid时不发送，由index确定位置
+     */
+    private void ensureCreated(Node node) throws NetworkFailureException {
+        if (node != null && mPendingCreates.containsValue(node)) {
+            commitUpdate();
+        }
+    }
 
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /** 记下节点所在的任务表，任务表本身的更新记它自己 */
+    private void markWritten(Node node) {
+        String listGid = null;
+        if (node instanceof Task) {
+            TaskList parent = ((Task) node).getParent();
+            listGid = parent != null ? parent.getGid() : null;
+        } else if (node instanceof TaskList) {
+            listGid = node.getGid();
+        }
+        if (listGid != null) {
+            mWrittenListGids.add(listGid);
+        }
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /**
+     * @return gids of the task lists written since the last call, whose downloaded copies
+     * are no longer up to date
+     */
+    public Set<String> takeWrittenListGids() {
+        Set<String> gids = new HashSet<String>(mWrittenListGids);
+        mWrittenListGids.clear();
+        return gids;
+    }
 
-            postRequest(jsPost);
-            mUpdateArray = null;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+    private void queueCreate(Node node, JSONObject action) throws NetworkFailureException {
+        queueAction(action);
+        mPendingCreates.put(action.optString(GTaskStringUtils.GTASK_JSON_ACTION_ID), node);
+    }
+    /** 动作数或大小超过上限时先提交之前积累的动作 */
+    private void queueAction(JSONObject action) throws NetworkFailureException {
+        int chars = action.toString().length();
+        if (mUpdateArray != null && (mUpdateArray.length() >= MAX_BATCH_ACTIONS
+                || mUpdateChars + chars > MAX_BATCH_CHARS)) {
+            commitUpdate();
         }
+        if (mUpdateArray == null)
+            mUpdateArray = new JSONArray();
+        mUpdateArray.put(action);
+        mUpdateChars += chars;
     }
     /** 从云端拉下来所有任务表，包装成json */
     public JSONArray getTaskLists() throws NetworkFailureException {
@@ -516,26 +510,30 @@ public class GTaskClient {
         }
 
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
-            // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            InputStream input = getTransport().get(mGetUrl);
+
+            // get the task list, only _setup({..., "t": {..., "lists": [...]}}) is decoded
+            JsonReader reader = GTaskJsonCodec.openSetup(input);
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"t".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (GTaskStringUtils.GTASK_JSON_LISTS.equals(reader.nextName())) {
+                            return GTaskJsonCodec.readArray(reader);
+                        }
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                }
+            } finally {
+                reader.close();
             }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
+            throw new JSONException("no task lists in the task page");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -544,11 +542,15 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task lists: handing jasonobject failed");
+        } catch (IllegalStateException e) {
+            // JsonReader遇到意外的结构
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task lists: unexpected task page");
         }
     }
-    /** 用gid拿任务表 */
+    /** 用gid拿任务表，可以在多个线程中同时调用，调用前需要先提交积累的动作 */
     public JSONArray getTaskList(String listGid) throws NetworkFailureException {
-        commitUpdate();
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
@@ -581,5 +583,8 @@ public class GTaskClient {
 
     public void resetUpdateArray() {
         mUpdateArray = null;
+        mUpdateChars = 0;
+        mPendingCreates.clear();
+        mWrittenListGids.clear();
     }
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * GTask协议的流式编解码：响应从解压流直接解析成JSONObject，不再先读成完整的字符串；
+ * 请求直接按表单编码写入字节数组，不再经过json字符串和UrlEncodedFormEntity两次复制
+ */
+class GTaskJsonCodec {
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * The javascript call in the task page whose argument holds the client version and lists
+     */
+    private static final String SETUP_BEGIN = "_setup(";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private GTaskJsonCodec() {
+    }
+
+    /** 从解压后的正文中读一个json对象，读完关闭input */
+    static JSONObject readObject(InputStream input) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(input, CHARSET));
+        try {
+            return readObject(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Open a reader at the argument of _setup(...) in the task page, the page before it is
+     * skipped without being kept and the page after it is never read
+     */
+    static JsonReader openSetup(InputStream input) throws IOException, JSONException {
+        boolean found = false;
+        try {
+            found = skipTo(input, SETUP_BEGIN);
+        } finally {
+            // 读取失败或者没有找到时关闭，连接才能回到连接池
+            if (!found) {
+                input.close();
+            }
+        }
+        if (!found) {
+            throw new JSONException("no " + SETUP_BEGIN + " in the task page");
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(input, CHARSET));
+        // 页面中是javascript对象，不一定是严格的json
+        reader.setLenient(true);
+        return reader;
+    }
+
+    /** 跳过输入流中marker（ASCII）之前的部分，包括marker本身，返回是否找到 */
+    private static boolean skipTo(InputStream input, String marker) throws IOException {
+        int matched = 0;
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b == marker.charAt(matched)) {
+                matched++;
+                if (matched == marker.length()) {
+                    return true;
+                }
+            } else {
+                // the marker has no repeated prefix, so a mismatch can only restart it
+                matched = b == marker.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            js.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return js;
+    }
+
+    static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray js = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            js.put(readValue(reader));
+        }
+        reader.endArray();
+        return js;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new JSONException("unexpected " + token);
+        }
+    }
+
+    /** 和org.json一样，整数保存为Long，其它数字保存为Double */
+    private static Object parseNumber(String number) throws JSONException {
+        try {
+            if (number.indexOf('.') == -1 && number.indexOf('e') == -1
+                    && number.indexOf('E') == -1) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e2) {
+                throw new JSONException("bad number " + number);
+            }
+        }
+    }
+
+    /**
+     * @return the form body name=json, with the json written straight into the url encoded
+     * bytes
+     */
+    static byte[] encodeForm(String name, JSONObject js) throws IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        FormEncodingWriter form = new FormEncodingWriter(out);
+        form.write(name);
+        out.write('=');
+        JsonWriter writer = new JsonWriter(form);
+        write(writer, js);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    static void write(JsonWriter writer, Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject js = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> keys = js.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.name(key);
+                write(writer, js.get(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray js = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < js.length(); i++) {
+                write(writer, js.get(i));
+            }
+            writer.endArray();
+        } else if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * Encode chars as application/x-www-form-urlencoded UTF-8, like URLEncoder does
+     */
+    private static class FormEncodingWriter extends Writer {
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+        private final OutputStream mOut;
+
+        private char mHighSurrogate;
+
+        FormEncodingWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) throws IOException {
+            for (int i = offset; i < offset + count; i++) {
+                writeChar(buffer[i]);
+            }
+        }
+
+        private void writeChar(char c) throws IOException {
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    writeCodePoint(Character.toCodePoint(high, c));
+                    return;
+                }
+                writeCodePoint('?');
+            }
+            if (Character.isHighSurrogate(c)) {
+                mHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                writeCodePoint('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+
+        private void writeCodePoint(int c) throws IOException {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                mOut.write(c);
+            } else if (c == ' ') {
+                mOut.write('+');
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (c < 0x10000) {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            } else {
+                writeByte(0xf0 | (c >> 18));
+                writeByte(0x80 | ((c >> 12) & 0x3f));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+        }
+
+        private void writeByte(int b) throws IOException {
+            mOut.write('%');
+            mOut.write(HEX[(b >> 4) & 0xf]);
+            mOut.write(HEX[b & 0xf]);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mHighSurrogate != 0) {
+                mHighSurrogate = 0;
+                writeCodePoint('?');
+            }
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Set;
+
+/**
+ * 按任务表保存上次下载的任务和任务表当时的last_modified（水位）。任务表的last_modified没有变化时
+ * 直接使用保存的任务，只有变化过的任务表才重新下载。保存的任务超过{@link #MAX_AGE_MS}后
+ * 重新下载一次，作为全量同步的兜底。多个任务表可以在不同线程中同时读写
+ */
+class GTaskListCache {
+    private static final String TAG = GTaskListCache.class.getSimpleName();
+
+    private static final String DIR_NAME = "gtask_lists";
+
+    private static final String FILE_SUFFIX = ".json";
+
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+
+    private static final String KEY_TASKS = "tasks";
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File mDir;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    GTaskListCache(Context context, String account) {
+        File root = new File(context.getFilesDir(), DIR_NAME);
+        mDir = new File(root, Uri.encode(account));
+        // the lists of other accounts are never used again
+        File[] dirs = root.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.equals(mDir)) {
+                    deleteDir(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return tasks of the list downloaded when it had the same last modified time, or null if
+     * the list has changed since or the tasks are too old
+     */
+    synchronized JSONArray get(String listGid, long lastModified) {
+        File file = getFile(listGid);
+        if (lastModified == 0 || !file.exists()
+                || System.currentTimeMillis() - file.lastModified() > MAX_AGE_MS) {
+            mMissCount++;
+            return null;
+        }
+        try {
+            JSONArray tasks = readFile(file, lastModified);
+            if (tasks != null) {
+                mHitCount++;
+                return tasks;
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Drop broken list " + listGid + ": " + e.toString());
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Drop broken list " + listGid + ": " + e.toString());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Drop broken list " + listGid + ": " + e.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "Drop unreadable list " + listGid + ": " + e.toString());
+        }
+        file.delete();
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Keep the downloaded tasks of the list with the list's last modified time
+     */
+    synchronized void put(String listGid, long lastModified, JSONArray tasks) {
+        File file = getFile(listGid);
+        if (lastModified == 0) {
+            file.delete();
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Can't create list cache directory");
+            return;
+        }
+        File temp = new File(mDir, file.getName() + ".tmp");
+        JsonWriter out = null;
+        try {
+            // 任务直接写入文件，不先拼成完整的字符串；水位写在前面，读取时水位不同就不用解析任务
+            out = new JsonWriter(new OutputStreamWriter(new BufferedOutputStream(
+                    new FileOutputStream(temp), BUFFER_SIZE), CHARSET));
+            out.beginObject();
+            out.name(KEY_LAST_MODIFIED).value(lastModified);
+            out.name(KEY_TASKS);
+            GTaskJsonCodec.write(out, tasks);
+            out.endObject();
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, e.toString());
+            temp.delete();
+        } catch (IOException e) {
+            Log.w(TAG, e.toString());
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the tasks kept for the list, after the list has been written to
+     */
+    synchronized void remove(String listGid) {
+        getFile(listGid).delete();
+    }
+
+    /**
+     * Delete the lists which no longer exist remotely
+     */
+    synchronized void retain(Set<String> listGids) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_SUFFIX) || !listGids.contains(Uri.decode(
+                    name.substring(0, name.length() - FILE_SUFFIX.length())))) {
+                file.delete();
+            }
+        }
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private File getFile(String listGid) {
+        return new File(mDir, Uri.encode(listGid) + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the tasks kept in the file, or null if they were downloaded at another last
+     * modified time
+     */
+    private static JSONArray readFile(File file, long lastModified)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE), CHARSET));
+        try {
+            JSONArray tasks = null;
+            boolean sameLastModified = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (KEY_LAST_MODIFIED.equals(name)) {
+                    if (reader.nextLong() != lastModified) {
+                        return null;
+                    }
+                    sameLastModified = true;
+                } else if (KEY_TASKS.equals(name)) {
+                    tasks = GTaskJsonCodec.readArray(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!sameLastModified || tasks == null) {
+                throw new JSONException("incomplete list file");
+            }
+            return tasks;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
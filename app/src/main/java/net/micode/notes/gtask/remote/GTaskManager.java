@@ -18,8 +18,6 @@ package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
@@ -28,6 +26,7 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDao;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
@@ -42,10 +41,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** 管理同步任务的单例工具类 */
 public class GTaskManager {
@@ -69,6 +77,8 @@ public class GTaskManager {
 
     private ContentResolver mContentResolver;
 
+    private NotesDao mDao;
+
     private boolean mSyncing;
 
     private boolean mCancelled;
@@ -87,6 +97,13 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    private GTaskListCache mListCache;
+
+    /**
+     * New tasks whose create actions are waiting in GTaskClient, with their local notes
+     */
+    private LinkedHashMap<Task, SqlNote> mPendingRemoteAdds;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
@@ -97,6 +114,7 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mPendingRemoteAdds = new LinkedHashMap<Task, SqlNote>();
     }
     /** 线程安全地获取单例 */
     public static synchronized GTaskManager getInstance() {
@@ -118,6 +136,7 @@ public class GTaskManager {
         }
         mContext = context;
         mContentResolver = mContext.getContentResolver();
+        mDao = NotesDao.getInstance(mContext);
         mSyncing = true;
         mCancelled = false;
         mGTaskListHashMap.clear();
@@ -126,6 +145,7 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        DataUtils.beginSyncSession(mContentResolver);
 
         try {
             GTaskClient client = GTaskClient.getInstance();
@@ -136,11 +156,12 @@ public class GTaskManager {
                 if (!client.login(mActivity)) {
                     throw new NetworkFailureException("login google task failed");
                 }
+                mListCache = new GTaskListCache(mContext, client.getSyncAccount().name);
             }
 
             // get the task list from google
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
-            initGTaskList();
+            initGTaskList(true);
 
             // do content sync work
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
@@ -156,48 +177,92 @@ public class GTaskManager {
             e.printStackTrace();
             return STATE_INTERNAL_ERROR;
         } finally {
+            // tasks created before a failure still need their gids locally, or they would be
+            // created again by the next sync
+            bindRemoteAdds();
+            dropWrittenLists();
+            mPendingRemoteAdds.clear();
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mListCache = null;
+            // the notes were written through NotesDao, which doesn't notify row by row
+            mDao.notifyChanged();
+            DataUtils.endSyncSession(mContentResolver);
             mSyncing = false;
         }
 
         return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
     }
-    /** 下载任务表，塞到mGTaskHashMap里 */
-    private void initGTaskList() throws NetworkFailureException {
+    /** 测试中不经过登录设置任务表缓存，之后直接调用initGTaskList */
+    void setListCache(GTaskListCache listCache) {
+        mListCache = listCache;
+    }
+
+    /**
+     * 下载任务表，塞到mGTaskHashMap里
+     * @param useCache false to download every list again, still keeping the downloaded ones
+     */
+    void initGTaskList(boolean useCache) throws NetworkFailureException {
         if (mCancelled)
             return;
         GTaskClient client = GTaskClient.getInstance();
+        // 任务表在多个线程中下载，先把积压的更新提交掉
+        client.commitUpdate();
+        ExecutorService executor = null;
         try {
             JSONArray jsTaskLists = client.getTaskLists();
+            HashSet<String> listGids = new HashSet<String>();
 
-            // init meta list first
-            mMetaList = null;
+            // find the meta list and the folder lists, keeping their remote order
+            JSONObject jsMetaList = null;
+            ArrayList<JSONObject> jsFolderLists = new ArrayList<JSONObject>();
             for (int i = 0; i < jsTaskLists.length(); i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
                 String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
+                listGids.add(gid);
 
                 if (name
                         .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
+                    jsMetaList = object;
+                } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                    jsFolderLists.add(object);
+                }
+            }
+
+            // start downloading all lists, the downloaded ones are parsed below while the
+            // others are still downloading
+            executor = Executors.newFixedThreadPool(GTaskClient.MAX_CONCURRENT_REQUESTS);
+            Future<JSONArray> metaFuture = null;
+            if (jsMetaList != null) {
+                metaFuture = startGetTaskList(executor, jsMetaList, useCache);
+            }
+            ArrayList<Future<JSONArray>> folderFutures = new ArrayList<Future<JSONArray>>();
+            for (JSONObject object : jsFolderLists) {
+                folderFutures.add(startGetTaskList(executor, object, useCache));
+            }
+            executor.shutdown();
+
+            // init meta list first
+            mMetaList = null;
+            if (jsMetaList != null) {
+                mMetaList = new TaskList();
+                mMetaList.setContentByRemoteJSON(jsMetaList);
+
+                // load meta data
+                JSONArray jsMetas = getTaskList(jsMetaList, metaFuture);
+                for (int j = 0; j < jsMetas.length(); j++) {
+                    JSONObject object = (JSONObject) jsMetas.getJSONObject(j);
+                    MetaData metaData = new MetaData();
+                    metaData.setContentByRemoteJSON(object);
+                    if (metaData.isWorthSaving()) {
+                        mMetaList.addChildTask(metaData);
+                        if (metaData.getGid() != null) {
+                            mMetaHashMap.put(metaData.getRelatedGid(), metaData);
                         }
                     }
                 }
@@ -211,39 +276,97 @@ public class GTaskManager {
                 GTaskClient.getInstance().createTaskList(mMetaList);
             }
 
-            // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
+            // init task list in the remote order, whichever download finishes first
+            for (int i = 0; i < jsFolderLists.size(); i++) {
+                JSONObject object = jsFolderLists.get(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
-                        }
+                TaskList tasklist = new TaskList();
+                tasklist.setContentByRemoteJSON(object);
+                mGTaskListHashMap.put(gid, tasklist);
+                mGTaskHashMap.put(gid, tasklist);
+
+                // load tasks
+                JSONArray jsTasks = getTaskList(object, folderFutures.get(i));
+                for (int j = 0; j < jsTasks.length(); j++) {
+                    object = (JSONObject) jsTasks.getJSONObject(j);
+                    gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+                    Task task = new Task();
+                    task.setContentByRemoteJSON(object);
+                    if (task.isWorthSaving()) {
+                        task.setMetaInfo(mMetaHashMap.get(gid));
+                        tasklist.addChildTask(task);
+                        mGTaskHashMap.put(gid, task);
                     }
                 }
             }
+            mListCache.retain(listGids);
+            Log.d(TAG, "task lists from cache: " + mListCache.getHitCount() + ", downloaded: "
+                    + mListCache.getMissCount());
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("initGTaskList: handing JSONObject failed");
+        } finally {
+            if (executor != null) {
+                // a failed list stops the others still downloading
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /** 在executor中取任务表 */
+    private Future<JSONArray> startGetTaskList(ExecutorService executor, final JSONObject jsList,
+            final boolean useCache) {
+        return executor.submit(new Callable<JSONArray>() {
+            @Override
+            public JSONArray call() throws NetworkFailureException, JSONException {
+                return getTaskList(jsList, useCache);
+            }
+        });
+    }
+
+    /** 等待任务表取回，把下载线程中的异常原样抛出 */
+    private JSONArray getTaskList(JSONObject jsList, Future<JSONArray> future)
+            throws NetworkFailureException, JSONException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkFailureException("get task list interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ActionFailureException("get task list "
+                    + jsList.optString(GTaskStringUtils.GTASK_JSON_ID) + " failed: " + cause);
+        }
+    }
+
+    /** 任务表的last_modified和上次下载时相同时使用保存的任务，否则重新下载 */
+    private JSONArray getTaskList(JSONObject jsList, boolean useCache)
+            throws NetworkFailureException, JSONException {
+        String gid = jsList.getString(GTaskStringUtils.GTASK_JSON_ID);
+        long lastModified = jsList.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 0);
+        JSONArray jsTasks = useCache ? mListCache.get(gid, lastModified) : null;
+        if (jsTasks == null) {
+            jsTasks = GTaskClient.getInstance().getTaskList(gid);
+            mListCache.put(gid, lastModified, jsTasks);
+        }
+        return jsTasks;
+    }
+
+    /** 同步中写过的任务表，保存的任务已经过时 */
+    private void dropWrittenLists() {
+        Set<String> listGids = GTaskClient.getInstance().takeWrittenListGids();
+        if (mListCache != null) {
+            for (String listGid : listGids) {
+                mListCache.remove(listGid);
+            }
         }
     }
     /**  */
@@ -261,7 +384,7 @@ public class GTaskManager {
 
         // for local deleted note
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mDao.queryNotes(SqlNote.PROJECTION_NOTE,
                     "(type<>? AND parent_id=?)", new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, null);
@@ -291,7 +414,7 @@ public class GTaskManager {
 
         // for note existing in database
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mDao.queryNotes(SqlNote.PROJECTION_NOTE,
                     "(type=? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
@@ -343,6 +466,13 @@ public class GTaskManager {
             }
         }
 
+        // bind the created tasks, even after a cancel the ones already sent must be bound
+        if (!mCancelled) {
+            GTaskClient.getInstance().commitUpdate();
+        }
+        bindRemoteAddsWithMeta();
+        mPendingRemoteAdds.clear();
+
         // refresh local sync id
         if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
@@ -363,8 +493,7 @@ public class GTaskManager {
 
         // for root folder
         try {
-            c = mContentResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                    Notes.ID_ROOT_FOLDER), SqlNote.PROJECTION_NOTE, null, null, null);
+            c = mDao.queryNote(Notes.ID_ROOT_FOLDER, SqlNote.PROJECTION_NOTE);
             if (c != null) {
                 c.moveToNext();
                 gid = c.getString(SqlNote.GTASK_ID_COLUMN);
@@ -392,10 +521,7 @@ public class GTaskManager {
 
         // for call-note folder
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE, "(_id=?)",
-                    new String[] {
-                        String.valueOf(Notes.ID_CALL_RECORD_FOLDER)
-                    }, null);
+            c = mDao.queryNote(Notes.ID_CALL_RECORD_FOLDER, SqlNote.PROJECTION_NOTE);
             if (c != null) {
                 if (c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
@@ -426,7 +552,7 @@ public class GTaskManager {
 
         // for local existing folders
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mDao.queryNotes(SqlNote.PROJECTION_NOTE,
                     "(type=? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
@@ -531,10 +657,12 @@ public class GTaskManager {
         if (node instanceof TaskList) {
             if (node.getName().equals(
                     GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT)) {
-                sqlNote = new SqlNote(mContext, Notes.ID_ROOT_FOLDER);
+                sqlNote = mDao.queryNote(Notes.ID_ROOT_FOLDER, SqlNote.PROJECTION_NOTE,
+                        SqlNote.getRowMapper(mContext));
             } else if (node.getName().equals(
                     GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_CALL_NOTE)) {
-                sqlNote = new SqlNote(mContext, Notes.ID_CALL_RECORD_FOLDER);
+                sqlNote = mDao.queryNote(Notes.ID_CALL_RECORD_FOLDER, SqlNote.PROJECTION_NOTE,
+                        SqlNote.getRowMapper(mContext));
             } else {
                 sqlNote = new SqlNote(mContext);
                 sqlNote.setContent(node.getLocalJSONFromContent());
@@ -548,7 +676,7 @@ public class GTaskManager {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (mDao.existsNote(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
                         }
@@ -561,7 +689,7 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (mDao.existsData(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
@@ -639,11 +767,11 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
+            // the task is created with a later batch, its gid is bound to the note then
             GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            mPendingRemoteAdds.put(task, sqlNote);
+            bindRemoteAddsWithMeta();
+            return;
         } else {
             TaskList tasklist = null;
 
@@ -680,7 +808,33 @@ public class GTaskManager {
             }
             n = (Node) tasklist;
         }
+        bindRemoteNode(n, sqlNote);
+    }
+
+    /** 把已经得到gid的新建任务写回本地便签，并为它们创建meta */
+    private void bindRemoteAddsWithMeta() throws NetworkFailureException {
+        for (Map.Entry<Task, SqlNote> entry : bindRemoteAdds()) {
+            // add meta
+            updateRemoteMeta(entry.getKey().getGid(), entry.getValue());
+        }
+    }
+
+    /** 把已经得到gid的新建任务写回本地便签，返回写回的任务 */
+    private ArrayList<Map.Entry<Task, SqlNote>> bindRemoteAdds() {
+        ArrayList<Map.Entry<Task, SqlNote>> bound = new ArrayList<Map.Entry<Task, SqlNote>>();
+        Iterator<Map.Entry<Task, SqlNote>> iter = mPendingRemoteAdds.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Task, SqlNote> entry = iter.next();
+            if (entry.getKey().getGid() != null) {
+                bindRemoteNode(entry.getKey(), entry.getValue());
+                bound.add(new AbstractMap.SimpleEntry<Task, SqlNote>(entry));
+                iter.remove();
+            }
+        }
+        return bound;
+    }
 
+    private void bindRemoteNode(Node n, SqlNote sqlNote) {
         // update local note
         sqlNote.setGtaskId(n.getGid());
         sqlNote.commit(false);
@@ -751,15 +905,11 @@ public class GTaskManager {
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        reloadGTaskList();
 
         Cursor c = null;
         try {
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+            c = mDao.queryNotes(SqlNote.PROJECTION_NOTE,
                     "(type<>? AND parent_id<>?)", new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
@@ -769,10 +919,7 @@ public class GTaskManager {
                     Node node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                        mDao.updateSyncId(c.getLong(SqlNote.ID_COLUMN), node.getLastModified());
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
@@ -790,6 +937,19 @@ public class GTaskManager {
         }
     }
 
+    /**
+     * 同步写完后重新取任务表。同步中写过的任务表一定重新下载，其它任务表仍然按last_modified
+     * 使用保存的任务，last_modified变化了的也会重新下载
+     */
+    void reloadGTaskList() throws NetworkFailureException {
+        mGTaskHashMap.clear();
+        mGTaskListHashMap.clear();
+        mMetaHashMap.clear();
+        // the sync ids must come from the server state after our own writes
+        dropWrittenLists();
+        initGTaskList(true);
+    }
+
     public String getSyncAccount() {
         return GTaskClient.getInstance().getSyncAccount().name;
     }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * GTaskClient下面的HTTP传输层。默认实现是{@link HttpClientTransport}，测试时可以通过
+ * {@link GTaskClient#setTransport}换成进程内的替身服务器。实现需要能在多个线程中同时调用
+ */
+public interface GTaskTransport {
+    /**
+     * @return the decompressed response body, the caller closes it
+     * @throws IOException on network failures and HTTP error statuses
+     */
+    InputStream get(String url) throws IOException;
+
+    /**
+     * Post a application/x-www-form-urlencoded UTF-8 body
+     * @return the decompressed response body, the caller closes it
+     * @throws IOException on network failures and HTTP error statuses
+     */
+    InputStream post(String url, byte[] formBody) throws IOException;
+
+    /**
+     * Drop the cookies of the previous login
+     */
+    void resetSession();
+
+    /**
+     * @return names of the cookies got by now
+     */
+    List<String> getCookieNames();
+}
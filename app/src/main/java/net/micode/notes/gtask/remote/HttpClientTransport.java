@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 基于Apache HttpClient的传输层。整个进程共用一个连接池，连接保持长连接，重新登录时只清空cookie；
+ * 请求和响应都用gzip压缩，服务器不接受压缩的请求时退回明文
+ */
+public class HttpClientTransport implements GTaskTransport {
+    private static final String TAG = HttpClientTransport.class.getSimpleName();
+
+    private static final int CONNECTION_TIMEOUT_MS = 10000;
+
+    /**
+     * Large task lists may take a while before the first byte comes
+     */
+    private static final int SOCKET_TIMEOUT_MS = 20000;
+
+    /**
+     * Time to wait for a pooled connection when all are in use
+     */
+    private static final long POOL_TIMEOUT_MS = 10000;
+
+    /**
+     * One connection for each list download worker, and one for the sync thread, so a
+     * request never waits for a pooled connection
+     */
+    private static final int MAX_CONNECTIONS = GTaskClient.MAX_CONCURRENT_REQUESTS + 1;
+
+    /**
+     * Pooled connections idle longer than this are likely closed by the server
+     */
+    private static final long IDLE_TIMEOUT_MS = 60000;
+
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Request bodies shorter than this are sent as is
+     */
+    private static final int GZIP_REQUEST_THRESHOLD = 1024;
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final ThreadSafeClientConnManager mConnManager;
+
+    private volatile boolean mGzipRequests;
+
+    public HttpClientTransport() {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        // 任务表会并发下载，连接池需要线程安全
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mConnManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        mHttpClient = new DefaultHttpClient(mConnManager, params);
+        mHttpClient.setCookieStore(new BasicCookieStore());
+        mGzipRequests = true;
+    }
+
+    @Override
+    public InputStream get(String url) throws IOException {
+        return execute(new HttpGet(url));
+    }
+
+    @Override
+    public InputStream post(String url, byte[] formBody) throws IOException {
+        boolean gzip = mGzipRequests && formBody.length >= GZIP_REQUEST_THRESHOLD;
+        HttpResponse response = mHttpClient.execute(createHttpPost(url, formBody, gzip));
+        int status = response.getStatusLine().getStatusCode();
+        if (gzip && (status == HttpStatus.SC_BAD_REQUEST
+                || status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)) {
+            // 服务器拒绝的请求没有执行，不压缩重发一次，之后都不再压缩
+            Log.w(TAG, "gzip request rejected with " + status + ", sending plain requests");
+            mGzipRequests = false;
+            consume(response.getEntity());
+            response = mHttpClient.execute(createHttpPost(url, formBody, false));
+        }
+        return openContent(response);
+    }
+
+    /** 构造urlencoded的form请求 */
+    private static HttpPost createHttpPost(String url, byte[] formBody, boolean gzip)
+            throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
+        httpPost.setHeader("AT", "1");
+        httpPost.setHeader("Accept-Encoding", "gzip");
+        if (gzip) {
+            httpPost.setHeader("Content-Encoding", "gzip");
+            httpPost.setEntity(new ByteArrayEntity(gzip(formBody)));
+        } else {
+            httpPost.setEntity(new ByteArrayEntity(formBody));
+        }
+        return httpPost;
+    }
+
+    private InputStream execute(HttpUriRequest request) throws IOException {
+        request.setHeader("Accept-Encoding", "gzip");
+        return openContent(mHttpClient.execute(request));
+    }
+
+    /** 处理HTTP gzip / deflate 压缩，返回正文的输入流，关闭后连接回到连接池 */
+    private InputStream openContent(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= HttpStatus.SC_BAD_REQUEST || entity == null) {
+            consume(entity);
+            throw new IOException("HTTP " + status);
+        }
+
+        InputStream input = entity.getContent();
+        String contentEncoding = null;
+        if (entity.getContentEncoding() != null) {
+            contentEncoding = entity.getContentEncoding().getValue();
+        }
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            input = new GZIPInputStream(input, SOCKET_BUFFER_SIZE);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            input = new InflaterInputStream(input, new Inflater(true), SOCKET_BUFFER_SIZE);
+        }
+        return new BufferedInputStream(input, SOCKET_BUFFER_SIZE);
+    }
+
+    private static void consume(HttpEntity entity) {
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        try {
+            gzip.write(data);
+        } finally {
+            gzip.close();
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void resetSession() {
+        mHttpClient.getCookieStore().clear();
+        // 新的会话之前丢掉可能已经被服务器关闭的连接
+        mConnManager.closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mConnManager.closeExpiredConnections();
+    }
+
+    @Override
+    public List<String> getCookieNames() {
+        List<String> names = new ArrayList<String>();
+        for (Cookie cookie : mHttpClient.getCookieStore().getCookies()) {
+            names.add(cookie.getName());
+        }
+        return names;
+    }
+}
@@ -21,7 +21,6 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
-import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -39,10 +38,12 @@ public class Note {
     private NoteData mNoteData;
     private static final String TAG = "Note";
     /**
-     * Create a new note id for adding a new note to databases
+     * Insert a new note together with its data rows in one batch. The note row is only
+     * created when the note is first saved, so an abandoned empty note never reaches the
+     * database, and the data rows refer to it by back reference
+     * @return id of the new note, or 0 on failure
      */
-    public static synchronized long getNewNoteId(Context context, long folderId) {
-        // Create a new note in the database
+    public synchronized long insertNote(Context context, long folderId) {
         ContentValues values = new ContentValues();
         long createdTime = System.currentTimeMillis();
         values.put(NoteColumns.CREATED_DATE, createdTime);
@@ -50,22 +51,40 @@ public class Note {
         values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
         values.put(NoteColumns.LOCAL_MODIFIED, 1);
         values.put(NoteColumns.PARENT_ID, folderId);
-        //将数据写入数据库表格
-        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI, values);
-        //ContentResolver()主要是实现外部应用对ContentProvider中的数据
-        //进行添加、删除、修改和查询操作
-        long noteId = 0;
-        try {
-            noteId = Long.valueOf(uri.getPathSegments().get(1));
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Get note id error :" + e.toString());
-            noteId = 0;
+        // 新建前设置的属性（背景、小部件、通话记录文件夹等）一起写入
+        values.putAll(mNoteDiffValues);
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        operationList.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                .withValues(values).build());
+        mNoteData.addOperations(operationList, 0, 0);
+
+        ContentProviderResult[] results = applyBatch(context, operationList);
+        if (results == null || results.length != operationList.size()) {
+            return 0;
         }
-        if (noteId == -1) {
-            throw new IllegalStateException("Wrong note id:" + noteId);
+        long noteId = ContentUris.parseId(results[0].uri);
+        if (noteId <= 0) {
+            Log.e(TAG, "Insert new note fail with folderId" + folderId);
+            return 0;
         }
+        mNoteDiffValues.clear();
+        mNoteData.onApplied(results);
         return noteId;
     }
+
+    private static ContentProviderResult[] applyBatch(Context context,
+            ArrayList<ContentProviderOperation> operationList) {
+        try {
+            return context.getContentResolver().applyBatch(Notes.AUTHORITY, operationList);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return null;
+    }
+
     //定义两个变量用来存储便签的数据，一个是存储便签属性、一个是存储便签内容
     public Note() {
         mNoteDiffValues = new ContentValues();
@@ -113,22 +132,23 @@ public class Note {
 
         /**
          * In theory, once data changed, the note should be updated on {@link NoteColumns#LOCAL_MODIFIED} and
-         * {@link NoteColumns#MODIFIED_DATE}. For data safety, though update note fails, we also update the
-         * note data info
+         * {@link NoteColumns#MODIFIED_DATE}. The note and its data are updated in one batch, so
+         * they are committed together
          */
-        if (context.getContentResolver().update(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
-                null) == 0) {
-            Log.e(TAG, "Update note error, should not happen");
-            // Do not return, fall through
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        if (mNoteDiffValues.size() > 0) {
+            operationList.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                    .withValues(mNoteDiffValues).build());
         }
-        mNoteDiffValues.clear();
+        mNoteData.addOperations(operationList, noteId, -1);
 
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
+        ContentProviderResult[] results = applyBatch(context, operationList);
+        if (results == null || results.length != operationList.size()) {
             return false;
         }
-
+        mNoteDiffValues.clear();
+        mNoteData.onApplied(results);
         return true;
     }
     //定义一个基本的便签内容的数据类，主要包含文本数据和电话号码数据
@@ -141,13 +161,18 @@ public class Note {
         //电话号码数据
         private ContentValues mCallDataValues;
 
-        private static final String TAG = "NoteData";
+        // 批量操作中写入文本和电话号码数据的操作的位置
+        private int mTextDataIndex;
+
+        private int mCallDataIndex;
 
         public NoteData() {
             mTextDataValues = new ContentValues();
             mCallDataValues = new ContentValues();
             mTextDataId = 0;
             mCallDataId = 0;
+            mTextDataIndex = -1;
+            mCallDataIndex = -1;
         }
         //下面是上述几个函数的具体实现
         boolean isLocalModified() {
@@ -179,79 +204,62 @@ public class Note {
             mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
             mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
         }
-        //下面函数的作用是将新的数据通过Uri的操作存储到数据库
-        Uri pushIntoContentResolver(Context context, long noteId) {
-            /**
-             * Check for safety
-             */
-            //判断数据是否合法
-            if (noteId <= 0) {
-                throw new IllegalArgumentException("Wrong note id:" + noteId);
+        /**
+         * Add the operations writing the changed data, new data rows refer to the note by
+         * the note id, or by the result of the operation at noteBackReference if it's not
+         * negative
+         */
+        void addOperations(ArrayList<ContentProviderOperation> operationList, long noteId,
+                int noteBackReference) {
+            if (mTextDataValues.size() > 0) {
+                mTextDataIndex = addOperation(operationList, mTextDataValues, mTextDataId,
+                        TextNote.CONTENT_ITEM_TYPE, noteId, noteBackReference);
+            }
+            if (mCallDataValues.size() > 0) {
+                mCallDataIndex = addOperation(operationList, mCallDataValues, mCallDataId,
+                        CallNote.CONTENT_ITEM_TYPE, noteId, noteBackReference);
             }
+        }
 
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-            ContentProviderOperation.Builder builder = null;
-            //数据库的操作列表
-            //把文本数据存入DataColumns
-            if(mTextDataValues.size() > 0) {
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
+        private int addOperation(ArrayList<ContentProviderOperation> operationList,
+                ContentValues values, long dataId, String mimeType, long noteId,
+                int noteBackReference) {
+            ContentProviderOperation.Builder builder;
+            if (dataId == 0) {
+                builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                        .withValues(values)
+                        .withValue(DataColumns.MIME_TYPE, mimeType);
+            } else {
+                builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        Notes.CONTENT_DATA_URI, dataId)).withValues(values);
+            }
+            if (noteBackReference >= 0) {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteBackReference);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            }
+            operationList.add(builder.build());
+            return operationList.size() - 1;
+        }
+
+        /**
+         * Take the ids of the inserted data rows once the batch has been applied
+         */
+        void onApplied(ContentProviderResult[] results) {
+            if (mTextDataIndex >= 0) {
                 if (mTextDataId == 0) {
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new text data fail with noteId" + noteId);
-                        mTextDataValues.clear();
-                        return null;
-                    }
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
-                    operationList.add(builder.build());
+                    setTextDataId(ContentUris.parseId(results[mTextDataIndex].uri));
                 }
                 mTextDataValues.clear();
+                mTextDataIndex = -1;
             }
-            //把电话号码数据存入DataColumns
-            if(mCallDataValues.size() > 0) {
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
+            if (mCallDataIndex >= 0) {
                 if (mCallDataId == 0) {
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new call data fail with noteId" + noteId);
-                        mCallDataValues.clear();
-                        return null;
-                    }
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
+                    setCallDataId(ContentUris.parseId(results[mCallDataIndex].uri));
                 }
                 mCallDataValues.clear();
+                mCallDataIndex = -1;
             }
-            //存储过程中的异常处理
-            if (operationList.size() > 0) {
-                try {
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                } catch (OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                }
-            }
-            return null;
         }
     }
 }
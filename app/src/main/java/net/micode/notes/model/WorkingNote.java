@@ -17,16 +17,15 @@
 package net.micode.notes.model;
 
 import android.appwidget.AppWidgetManager;
-import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
 import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.NoteCache;
+import net.micode.notes.data.NoteCache.NoteRecord;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
-import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
@@ -61,45 +60,6 @@ public class WorkingNote {
     private boolean mIsDeleted;
 
     private NoteSettingChangedListener mNoteSettingStatusListener;
-    // 声明 DATA_PROJECTION字符串数组
-    public static final String[] DATA_PROJECTION = new String[] {
-            DataColumns.ID,
-            DataColumns.CONTENT,
-            DataColumns.MIME_TYPE,
-            DataColumns.DATA1,
-            DataColumns.DATA2,
-            DataColumns.DATA3,
-            DataColumns.DATA4,
-    };
-    // 声明 NOTE_PROJECTION字符串数组
-    public static final String[] NOTE_PROJECTION = new String[] {
-            NoteColumns.PARENT_ID,
-            NoteColumns.ALERTED_DATE,
-            NoteColumns.BG_COLOR_ID,
-            NoteColumns.WIDGET_ID,
-            NoteColumns.WIDGET_TYPE,
-            NoteColumns.MODIFIED_DATE
-    };
-
-    private static final int DATA_ID_COLUMN = 0;
-
-    private static final int DATA_CONTENT_COLUMN = 1;
-
-    private static final int DATA_MIME_TYPE_COLUMN = 2;
-
-    private static final int DATA_MODE_COLUMN = 3;
-
-    private static final int NOTE_PARENT_ID_COLUMN = 0;
-
-    private static final int NOTE_ALERTED_DATE_COLUMN = 1;
-
-    private static final int NOTE_BG_COLOR_ID_COLUMN = 2;
-
-    private static final int NOTE_WIDGET_ID_COLUMN = 3;
-
-    private static final int NOTE_WIDGET_TYPE_COLUMN = 4;
-
-    private static final int NOTE_MODIFIED_DATE_COLUMN = 5;
 
     // New note construct
     private WorkingNote(Context context, long folderId) {
@@ -125,56 +85,28 @@ public class WorkingNote {
         loadNote();
     }
 
-    // 加载Note,通过数据库调用query函数找到第一个条目
+    // 加载Note,从便签缓存中读取，缓存中没有时才查询数据库
     private void loadNote() {
-        Cursor cursor = mContext.getContentResolver().query(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteId), NOTE_PROJECTION, null,
-                null, null);
-        // 若存在，储存相应信息
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                mFolderId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
-                mBgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
-                mWidgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
-                mWidgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
-                mAlertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
-                mModifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
-            }
-            cursor.close();
-        } else {
-            // 若不存在，报错
+        NoteRecord record = NoteCache.getInstance(mContext).getNote(mNoteId);
+        // 若不存在，报错
+        if (record == null) {
             Log.e(TAG, "No note with id:" + mNoteId);
             throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
         }
-        loadNoteData();
-    }
-    // 加载NoteData
-    private void loadNoteData() {
-        Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
-                DataColumns.NOTE_ID + "=?", new String[] {
-                    String.valueOf(mNoteId)
-                }, null);
-        // 查到信息不为空
-        if (cursor != null) {
-            // 查看第一项是否存在 
-            if (cursor.moveToFirst()) {
-                do {
-                    String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
-                    if (DataConstants.NOTE.equals(type)) {
-                        mContent = cursor.getString(DATA_CONTENT_COLUMN);
-                        mMode = cursor.getInt(DATA_MODE_COLUMN);
-                        mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else if (DataConstants.CALL_NOTE.equals(type)) {
-                        mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else {
-                        Log.d(TAG, "Wrong note type with type:" + type);
-                    }
-                } while (cursor.moveToNext());//查阅所有项,直到为空
-            }
-            cursor.close();
-        } else {
-            Log.e(TAG, "No data with id:" + mNoteId);
-            throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);
+        mFolderId = record.getParentId();
+        mBgColorId = record.getBgColorId();
+        mWidgetId = record.getWidgetId();
+        mWidgetType = record.getWidgetType();
+        mAlertDate = record.getAlertedDate();
+        mModifiedDate = record.getModifiedDate();
+        // 大的内容在加载到缓存时解压
+        mContent = record.getContent();
+        mMode = record.getMode();
+        if (record.getTextDataId() > 0) {
+            mNote.setTextDataId(record.getTextDataId());
+        }
+        if (record.getCallDataId() > 0) {
+            mNote.setCallDataId(record.getCallDataId());
         }
     }
     // 创建空的Note(context，id，widget，bgcolor)
@@ -194,14 +126,15 @@ public class WorkingNote {
     public synchronized boolean saveNote() {
         if (isWorthSaving()) {//是否值得保存
             if (!existInDatabase()) {// 是否存在数据库中
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
+                // 第一次保存时才创建便签，便签和数据在同一个批量操作中写入
+                if ((mNoteId = mNote.insertNote(mContext, mFolderId)) == 0) {
                     Log.e(TAG, "Create new note fail with id:" + mNoteId);
                     return false;
                 }
+            } else {
+                mNote.syncNote(mContext, mNoteId);
             }
 
-            mNote.syncNote(mContext, mNoteId);
-
             /**
              * Update widget content if there exist any widget of this note
              */
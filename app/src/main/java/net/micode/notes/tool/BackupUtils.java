@@ -18,16 +18,21 @@ package net.micode.notes.tool;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.ResultReceiver;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.DataContentCodec;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDao;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -71,9 +76,12 @@ public class BackupUtils {
 
     private TextExport mTextExport;
 
+    private DatabaseBackup mDatabaseBackup;
+
     private BackupUtils(Context context) {
         //初始化函数
         mTextExport = new TextExport(context);
+        mDatabaseBackup = new DatabaseBackup(context);
     }
     //外部存储功能是否可用
     private static boolean externalStorageAvailable() {
@@ -92,6 +100,79 @@ public class BackupUtils {
         return mTextExport.mFileDirectory;
     }
 
+    /**
+     * Progress of {@link #backupDatabase}, called on the backup thread
+     */
+    public interface OnBackupProgressListener {
+        void onBackupProgress(int percent);
+    }
+
+    public int backupDatabase(OnBackupProgressListener listener) {
+        return mDatabaseBackup.backupDatabase(listener);
+    }
+
+    public String getBackupFileName() {
+        return mDatabaseBackup.mFileName;
+    }
+
+    public String getBackupFileDir() {
+        return mDatabaseBackup.mFileDirectory;
+    }
+
+    /**
+     * Database will be backed up as a zipped snapshot of note.db, which can be restored as it is
+     */
+    private static class DatabaseBackup {
+        private Context mContext;
+        private String mFileName;
+        private String mFileDirectory;
+
+        public DatabaseBackup(Context context) {
+            mContext = context;
+            mFileName = "";
+            mFileDirectory = "";
+        }
+
+        public int backupDatabase(final OnBackupProgressListener listener) {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+
+            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                    R.string.file_name_backup_format);
+            if (file == null) {
+                Log.e(TAG, "create file to backup failed");
+                return STATE_SYSTEM_ERROR;
+            }
+            // 由NotesProvider在数据库连接上生成快照，备份时仍可继续编辑便签
+            Bundle extras = null;
+            if (listener != null) {
+                extras = new Bundle();
+                extras.putParcelable(Notes.EXTRA_PROGRESS_RECEIVER, new ResultReceiver(null) {
+                    @Override
+                    protected void onReceiveResult(int resultCode, Bundle resultData) {
+                        listener.onBackupProgress(resultData.getInt(Notes.RESULT_PROGRESS));
+                    }
+                });
+            }
+            Bundle result = null;
+            try {
+                result = mContext.getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                        Notes.METHOD_SNAPSHOT_DATABASE, file.getPath(), extras);
+            } catch (SQLException e) {
+                Log.e(TAG, "backup database failed: " + e.toString());
+            }
+            if (result == null || !result.getBoolean(Notes.RESULT_SUCCESS)) {
+                file.delete();
+                return STATE_SYSTEM_ERROR;
+            }
+            mFileName = file.getName();
+            mFileDirectory = mContext.getString(R.string.file_path);
+            return STATE_SUCCESS;
+        }
+    }
+
     private static class TextExport {
         private static final String[] NOTE_PROJECTION = {
                 NoteColumns.ID,
@@ -113,6 +194,8 @@ public class BackupUtils {
                 DataColumns.DATA2,
                 DataColumns.DATA3,
                 DataColumns.DATA4,
+                DataColumns.CONTENT_CODEC,
+                DataColumns.COMPRESSED_CONTENT,
         };
 
         private static final int DATA_COLUMN_CONTENT = 0;
@@ -123,6 +206,10 @@ public class BackupUtils {
 
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
 
+        private static final int DATA_COLUMN_CONTENT_CODEC = 6;
+
+        private static final int DATA_COLUMN_COMPRESSED_CONTENT = 7;
+
         private final String [] TEXT_FORMAT;
         private static final int FORMAT_FOLDER_NAME          = 0;
         private static final int FORMAT_NOTE_DATE            = 1;
@@ -150,8 +237,8 @@ public class BackupUtils {
         private void exportFolderToText(String folderId, PrintStream ps) {
             // Query notes belong to this folder
             // 通过查询parent id是文件夹id的note来选出制定ID文件夹下的Note
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] {
+            Cursor notesCursor = NotesDao.getInstance(mContext).queryNotes(NOTE_PROJECTION,
+                    NoteColumns.PARENT_ID + "=?", new String[] {
                         folderId
                     }, null);
 
@@ -177,8 +264,8 @@ public class BackupUtils {
          * Export note identified by id to a print stream
          */
         private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
+            Cursor dataCursor = NotesDao.getInstance(mContext).queryData(DATA_PROJECTION,
+                    DataColumns.NOTE_ID + "=?", new String[] {
                         noteId
                     }, null);
 
@@ -208,7 +295,9 @@ public class BackupUtils {
                                         location));
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
+                            String content = DataContentCodec.decode(dataCursor,
+                                    DATA_COLUMN_CONTENT, DATA_COLUMN_CONTENT_CODEC,
+                                    DATA_COLUMN_COMPRESSED_CONTENT);
                             if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
                                         content));
@@ -245,8 +334,7 @@ public class BackupUtils {
             }
             // First export folder and its notes
             // 导出文件夹，就是导出里面包含的便签
-            Cursor folderCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
+            Cursor folderCursor = NotesDao.getInstance(mContext).queryNotes(
                     NOTE_PROJECTION,
                     "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
                             + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
@@ -274,8 +362,7 @@ public class BackupUtils {
 
             // Export notes in root's folder
             // 将根目录里的便签导出
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
+            Cursor noteCursor = NotesDao.getInstance(mContext).queryNotes(
                     NOTE_PROJECTION,
                     NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
                             + "=0", null, null);
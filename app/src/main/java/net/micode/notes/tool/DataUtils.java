@@ -16,22 +16,28 @@
 
 package net.micode.notes.tool;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.OperationApplicationException;
+import android.content.Context;
 import android.database.Cursor;
-import android.os.RemoteException;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
+import net.micode.notes.data.AttachmentStore;
+import net.micode.notes.data.NoteCache;
+import net.micode.notes.data.NoteCache.NoteRecord;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.Attachment;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
-import java.util.ArrayList;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashSet;
 
 
@@ -47,33 +53,13 @@ public class DataUtils {
             Log.d(TAG, "no id is in the hashset");
             return true;
         }
-        //提供一个任务列表
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
-            if(id == Notes.ID_ROOT_FOLDER) {
-                Log.e(TAG, "Don't delete system folder root");
-                continue;
-            }
-            //如果发现是根文件夹，则不删除
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-                    //用newDelete实现删除功能
-            operationList.add(builder.build());
-        }
-        try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
-            //数据库事务，数据库事务是由一组数据库操作序列组成，事务作为一个整体被执行
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());
-                return false;
-            }
-            return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        //系统文件夹（包括根文件夹）由NotesProvider过滤，不会被删除
+        //一条DELETE语句删除所有笔记，而不是每个笔记一个操作
+        if (callBatchMethod(resolver, Notes.METHOD_DELETE_NOTES, ids, null) == null) {
+            Log.d(TAG, "delete notes failed, ids:" + ids.toString());
+            return false;
         }
-        return false;
+        return true;
     }
 
     public static void moveNoteToFoler(ContentResolver resolver, long id, long srcFolderId, long desFolderId) {
@@ -92,116 +78,118 @@ public class DataUtils {
             return true;
         }
 
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-                    //通过withAppendedId方法，为该Uri加上ID
-            builder.withValue(NoteColumns.PARENT_ID, folderId);
-            builder.withValue(NoteColumns.LOCAL_MODIFIED, 1);
-            operationList.add(builder.build());
-        }//将ids里包含的每一列的数据逐次加入到operationList中，等待最后的批量处理
+        //移入回收站时记录原文件夹，便于恢复
+        Bundle result;
+        if (folderId == Notes.ID_TRASH_FOLER) {
+            result = callBatchMethod(resolver, Notes.METHOD_TRASH_NOTES, ids, null);
+        } else {
+            Bundle extras = new Bundle();
+            extras.putLong(Notes.EXTRA_FOLDER_ID, folderId);
+            result = callBatchMethod(resolver, Notes.METHOD_MOVE_NOTES, ids, extras);
+        }
+        if (result == null) {
+            Log.d(TAG, "move notes failed, ids:" + ids.toString());
+            return false;
+        }
+        return true;
+    }
 
+    //在后台线程调用，删除在回收站中超过保留期限的便签
+    public static int purgeTrash(ContentResolver resolver, long retention) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_TRASHED_BEFORE, System.currentTimeMillis() - retention);
         try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);//applyBatch一次性处理一个操作列表
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());
-                return false;
-            }
-            return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
+            Bundle result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_PURGE_TRASH,
+                    null, extras);
+            return result != null ? result.getInt(Notes.RESULT_COUNT) : 0;
+        } catch (SQLException e) {
+            Log.e(TAG, "purge trash failed: " + e.toString());
+        }
+        return 0;
+    }
+
+    //同步开始时调用，同步期间的变化通知合并到会话结束时发送
+    public static void beginSyncSession(ContentResolver resolver) {
+        resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_BEGIN_SYNC_SESSION, null, null);
+    }
+
+    //与beginSyncSession成对调用，放在finally中
+    public static void endSyncSession(ContentResolver resolver) {
+        resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_END_SYNC_SESSION, null, null);
+    }
+
+    //通过NotesProvider.call对整个id集合执行一条语句
+    private static Bundle callBatchMethod(ContentResolver resolver, String method,
+            HashSet<Long> ids, Bundle extras) {
+        if (extras == null) {
+            extras = new Bundle();
+        }
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, toArray(ids));
+        try {
+            return resolver.call(Notes.CONTENT_NOTE_URI, method, null, extras);
+        } catch (RuntimeException e) {
+            // 包括IllegalArgumentException和数据库的SQLException
             Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
         }
-        return false;
+        return null;
     }
 
     /**
      * Get the all folder count except system folders {@link Notes#TYPE_SYSTEM}}
      */
     public static int getUserFolderCount(ContentResolver resolver) {
-        Cursor cursor =resolver.query(Notes.CONTENT_NOTE_URI,
-                new String[] { "COUNT(*)" },
-                NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)},
-                null);//条件：源文件不为trash folder
-
-        int count = 0;
-        if(cursor != null) {
-            if(cursor.moveToFirst()) {
-                try {
-                    count = cursor.getInt(0);
-                } catch (IndexOutOfBoundsException e) {
-                    Log.e(TAG, "get folder count failed:" + e.toString());
-                } finally {
-                    cursor.close();
-                }
-            }
-        }
-        return count;
+        //由NotesProvider用编译好的语句直接取得数量，不再打开游标
+        Bundle result = callLookup(resolver, Notes.METHOD_COUNT_USER_FOLDERS, null, null);
+        return result != null ? result.getInt(Notes.RESULT_COUNT) : 0;
     }
 
     public static boolean visibleInNoteDatabase(ContentResolver resolver, long noteId, int type) {
-        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),//通过withAppendedId方法，为该Uri加上ID
-                null,
-                NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER,
-                new String [] {String.valueOf(type)},
-                null);//条件：type符合，且不属于垃圾文件夹
-
-        boolean exist = false;
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {//用getcount函数判断cursor是否为空
-                exist = true;
-            }
-            cursor.close();
-        }
-        return exist;
+        //条件：type符合，且不属于垃圾文件夹
+        Bundle extras = new Bundle();
+        extras.putInt(Notes.EXTRA_NOTE_TYPE, type);
+        return existNotes(resolver, new long[] { noteId }, extras).length > 0;
     }
 
     public static boolean existInNoteDatabase(ContentResolver resolver, long noteId) {
-        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
-                null, null, null, null);
-
-        boolean exist = false;
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                exist = true;
-            }
-            cursor.close();
-        }
-        return exist;
+        return existNotes(resolver, new long[] { noteId }, null).length > 0;
     }
 
     public static boolean existInDataDatabase(ContentResolver resolver, long dataId) {
-        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
-                null, null, null, null);
+        return existData(resolver, new long[] { dataId }).length > 0;
+    }
 
-        boolean exist = false;
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                exist = true;
-            }
-            cursor.close();
+    //一次查询整个id集合，返回其中存在的笔记
+    public static HashSet<Long> filterExistingNotes(ContentResolver resolver, HashSet<Long> ids) {
+        return toSet(existNotes(resolver, toArray(ids), null));
+    }
+
+    //一次查询整个id集合，返回其中存在的数据
+    public static HashSet<Long> filterExistingData(ContentResolver resolver, HashSet<Long> ids) {
+        return toSet(existData(resolver, toArray(ids)));
+    }
+
+    private static long[] existNotes(ContentResolver resolver, long[] ids, Bundle extras) {
+        if (extras == null) {
+            extras = new Bundle();
         }
-        return exist;
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, ids);
+        Bundle result = callLookup(resolver, Notes.METHOD_EXIST_NOTES, null, extras);
+        long[] existIds = result != null ? result.getLongArray(Notes.RESULT_NOTE_IDS) : null;
+        return existIds != null ? existIds : new long[0];
+    }
+
+    private static long[] existData(ContentResolver resolver, long[] ids) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(Notes.EXTRA_DATA_IDS, ids);
+        Bundle result = callLookup(resolver, Notes.METHOD_EXIST_DATA, null, extras);
+        long[] existIds = result != null ? result.getLongArray(Notes.RESULT_DATA_IDS) : null;
+        return existIds != null ? existIds : new long[0];
     }
 
     public static boolean checkVisibleFolderName(ContentResolver resolver, String name) {
-        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, null,
-                NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
-                " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
-                " AND " + NoteColumns.SNIPPET + "=?",
-                new String[] { name }, null);
         //通过名字查询文件是否存在
-        boolean exist = false;
-        if(cursor != null) {
-            if(cursor.getCount() > 0) {
-                exist = true;
-            }
-            cursor.close();
-        }
-        return exist;
+        Bundle result = callLookup(resolver, Notes.METHOD_COUNT_FOLDER_NAME, name, null);
+        return result != null && result.getInt(Notes.RESULT_COUNT) > 0;
     }
 
     public static HashSet<AppWidgetAttribute> getFolderNoteWidget(ContentResolver resolver, long folderId) {
@@ -232,23 +220,9 @@ public class DataUtils {
         return set;
     }
 
-    public static String getCallNumberByNoteId(ContentResolver resolver, long noteId) {
-        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
-                new String [] { CallNote.PHONE_NUMBER },
-                CallNote.NOTE_ID + "=? AND " + CallNote.MIME_TYPE + "=?",
-                new String [] { String.valueOf(noteId), CallNote.CONTENT_ITEM_TYPE },
-                null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            try {
-                return cursor.getString(0);
-            } catch (IndexOutOfBoundsException e) {
-                Log.e(TAG, "Get call number fails " + e.toString());
-            } finally {
-                cursor.close();
-            }
-        }
-        return "";
+    public static String getCallNumberByNoteId(Context context, long noteId) {
+        NoteRecord record = NoteCache.getInstance(context).getNote(noteId);
+        return record != null ? record.getPhoneNumber() : "";
     }
 
     public static long getNoteIdByPhoneNumberAndCallDate(ContentResolver resolver, String phoneNumber, long callDate) {
@@ -272,23 +246,82 @@ public class DataUtils {
         return 0;
     }
 
-    public static String getSnippetById(ContentResolver resolver, long noteId) {
-        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
-                new String [] { NoteColumns.SNIPPET },
-                NoteColumns.ID + "=?",
-                new String [] { String.valueOf(noteId)},
-                null);//条件：noteId
+    public static String getSnippetById(Context context, long noteId) {
+        NoteRecord record = NoteCache.getInstance(context).getNote(noteId);//条件：noteId
+        if (record != null) {
+            return record.getSnippet();
+        }
+        throw new IllegalArgumentException("Note is not found with id: " + noteId);
+    }
 
-        if (cursor != null) {
-            String snippet = "";
-            if (cursor.moveToFirst()) {
-                snippet = cursor.getString(0);
+    private static Bundle callLookup(ContentResolver resolver, String method, String arg,
+            Bundle extras) {
+        try {
+            return resolver.call(Notes.CONTENT_NOTE_URI, method, arg, extras);
+        } catch (SQLException e) {
+            Log.e(TAG, method + " failed: " + e.toString());
+        }
+        return null;
+    }
+
+    private static long[] toArray(HashSet<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            array[i++] = id;
+        }
+        return array;
+    }
+
+    private static HashSet<Long> toSet(long[] ids) {
+        HashSet<Long> set = new HashSet<Long>(ids.length * 2);
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    /**
+     * Copy the content of source into the attachment store and attach it to the note, content
+     * already stored for any note is not copied again. Must not be called on the UI thread
+     * @return uri to read the attachment, or null on failure
+     */
+    public static Uri addAttachment(Context context, long noteId, Uri source, String mimeType) {
+        ContentResolver resolver = context.getContentResolver();
+        AttachmentStore store = new AttachmentStore(context);
+        String hash;
+        try {
+            InputStream in = resolver.openInputStream(source);
+            if (in == null) {
+                Log.e(TAG, "can't open attachment " + source);
+                return null;
             }
-            cursor.close();
-            return snippet;
+            try {
+                hash = store.put(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "add attachment failed: " + e.toString());
+            return null;
         }
-        throw new IllegalArgumentException("Note is not found with id: " + noteId);
+
+        Uri uri = Uri.withAppendedPath(Attachment.CONTENT_URI, hash);
+        ContentValues values = new ContentValues();
+        values.put(Attachment.NOTE_ID, noteId);
+        values.put(Attachment.MIME_TYPE, Attachment.CONTENT_ITEM_TYPE);
+        values.put(Attachment.HASH, hash);
+        values.put(Attachment.CONTENT_MIME_TYPE, mimeType);
+        try {
+            values.put(Attachment.SIZE, store.getFile(hash).length());
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "attachment is gone: " + e.toString());
+            return null;
+        }
+        resolver.insert(Notes.CONTENT_DATA_URI, values);
+        return uri;
     }
+
     //对字符串进行格式处理，将字符串两头的空格去掉，同时将换行符去掉
     public static String getFormattedSnippet(String snippet) {
         if (snippet != null) {
@@ -71,7 +71,7 @@ public class AlarmAlertActivity extends Activity implements OnClickListener, OnD
 
         try {
             mNoteId = Long.valueOf(intent.getData().getPathSegments().get(1));
-            mSnippet = DataUtils.getSnippetById(this.getContentResolver(), mNoteId);
+            mSnippet = DataUtils.getSnippetById(this, mNoteId);
             //根据ID从数据库中获取标签的内容；
             //getContentResolver（）是实现数据共享，实例存储。
             mSnippet = mSnippet.length() > SNIPPET_PREW_MAX_LEN ? mSnippet.substring(0,
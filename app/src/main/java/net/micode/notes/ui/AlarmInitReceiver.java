@@ -34,6 +34,9 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         NoteColumns.ID,
         NoteColumns.ALERTED_DATE
     };
+
+    public static final String ALARM_SELECTION = NoteColumns.ALERTED_DATE + ">? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
     //对数据库的操作，调用标签ID和闹钟时间
     private static final int COLUMN_ID                = 0;
     private static final int COLUMN_ALERTED_DATE      = 1;
@@ -44,7 +47,7 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         // System.currentTimeMillis()产生一个当前的毫秒级时间戳
         Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
                 PROJECTION,
-                NoteColumns.ALERTED_DATE + ">? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                ALARM_SELECTION,
                 new String[] { String.valueOf(currentDate) },
                 //将long变量currentDate转化为字符串
                 null);
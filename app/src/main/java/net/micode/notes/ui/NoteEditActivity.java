@@ -28,6 +28,8 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Paint;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.Spannable;
@@ -146,6 +148,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private static final int SHORTCUT_ICON_TITLE_MAX_LEN = 10;
 
+    private static final int REQUEST_CODE_ATTACH = 101;
+
     public static final String TAG_CHECKED = String.valueOf('\u221A');
     public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
 
@@ -591,11 +595,66 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 //删除日期提醒
                 mWorkingNote.setAlertDate(0, false);
                 break;
+            case R.id.menu_attach:
+                //选择要附加的文件
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_CODE_ATTACH);
+                break;
             default:
                 break;
         }
         return true;
     }
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_CODE_ATTACH) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        // 和设置提醒一样，附件需要便签的id，先保存便签
+        if (!mWorkingNote.existInDatabase()) {
+            saveNote();
+        }
+        if (mWorkingNote.getNoteId() > 0) {
+            new AttachTask(getApplicationContext(), mWorkingNote.getNoteId(), data.getData())
+                    .execute();
+        } else {
+            showToast(R.string.error_note_empty_for_attach);
+        }
+    }
+
+    // 在后台把文件复制到附件存储，静态类不持有Activity
+    private static class AttachTask extends AsyncTask<Void, Void, Uri> {
+        private final Context mContext;
+
+        private final long mNoteId;
+
+        private final Uri mSource;
+
+        AttachTask(Context context, long noteId, Uri source) {
+            mContext = context;
+            mNoteId = noteId;
+            mSource = source;
+        }
+
+        @Override
+        protected Uri doInBackground(Void... unused) {
+            return DataUtils.addAttachment(mContext, mNoteId, mSource,
+                    mContext.getContentResolver().getType(mSource));
+        }
+
+        @Override
+        protected void onPostExecute(Uri result) {
+            Toast.makeText(mContext, result != null ? R.string.info_attach_success
+                    : R.string.error_attach_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     //建立事件提醒器
     private void setReminder() {
         DateTimePickerDialog d = new DateTimePickerDialog(this, System.currentTimeMillis());
@@ -19,9 +19,11 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -91,6 +93,13 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private static final String PREFERENCE_ADD_INTRODUCTION = "net.micode.notes.introduction";
 
+    private static final String PREFERENCE_LAST_TRASH_PURGE = "net.micode.notes.last_trash_purge";
+
+    // 回收站中的便签保留30天，每天最多清理一次
+    private static final long TRASH_RETENTION = 30L * 24 * 60 * 60 * 1000;
+
+    private static final long TRASH_PURGE_INTERVAL = 24L * 60 * 60 * 1000;
+
     private enum ListEditState {
         NOTE_LIST, SUB_FOLDER, CALL_RECORD_FOLDER
     };
@@ -125,13 +134,15 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
+    //列表按文件夹查询，只接收当前文件夹的变化通知；测试中用来检查查询计划
+    public static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
             + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
             + NoteColumns.NOTES_COUNT + ">0)";
 
+    public static final String NOTES_LIST_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC";
+
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
 
@@ -147,6 +158,34 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
          * Insert an introduction when user firstly use this application
          */
         setAppInfoFromRawRes();
+
+        startTrashPurge();
+    }
+
+    // 在后台分批清理过期的回收站便签，不阻塞界面
+    private void startTrashPurge() {
+        final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        long now = System.currentTimeMillis();
+        if (now - sp.getLong(PREFERENCE_LAST_TRASH_PURGE, 0) < TRASH_PURGE_INTERVAL) {
+            return;
+        }
+        sp.edit().putLong(PREFERENCE_LAST_TRASH_PURGE, now).commit();
+
+        new PurgeTrashTask(getApplicationContext().getContentResolver()).execute();
+    }
+
+    // 静态类只持有应用的ContentResolver，清理未完成时Activity销毁也不会泄漏
+    private static class PurgeTrashTask extends AsyncTask<Void, Void, Integer> {
+        private final ContentResolver mResolver;
+
+        PurgeTrashTask(ContentResolver resolver) {
+            mResolver = resolver;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... unused) {
+            return DataUtils.purgeTrash(mResolver, TRASH_RETENTION);
+        }
     }
 
     @Override
@@ -418,12 +457,15 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
+        String selection = null;
+        String[] selectionArgs = null;
+        if (mCurrentFolderId == Notes.ID_ROOT_FOLDER) {
+            selection = ROOT_FOLDER_SELECTION;
+            selectionArgs = new String[] { String.valueOf(mCurrentFolderId) };
+        }
         mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, mCurrentFolderId),
+                NoteItemData.PROJECTION, selection, selectionArgs, NOTES_LIST_SORT_ORDER);
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -803,6 +845,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 exportNoteToText();
                 break;
             }
+            case R.id.menu_backup: {
+                backupNotes();
+                break;
+            }
             case R.id.menu_sync: {
                 if (isSyncMode()) {
                     if (TextUtils.equals(item.getTitle(), getString(R.string.menu_sync))) {
@@ -880,6 +926,65 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
         }.execute();
     }
+    //将整个便签数据库备份为压缩快照，备份期间仍可编辑
+    private void backupNotes() {
+        final BackupUtils backup = BackupUtils.getInstance(NotesListActivity.this);
+        final ProgressDialog dialog = new ProgressDialog(NotesListActivity.this);
+        dialog.setMessage(getString(R.string.backup_in_progress));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setMax(100);
+        dialog.setCancelable(false);
+        new AsyncTask<Void, Integer, Integer>() {
+
+            @Override
+            protected void onPreExecute() {
+                dialog.show();
+            }
+
+            @Override
+            protected Integer doInBackground(Void... unused) {
+                return backup.backupDatabase(new BackupUtils.OnBackupProgressListener() {
+                    @Override
+                    public void onBackupProgress(int percent) {
+                        publishProgress(percent);
+                    }
+                });
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... percent) {
+                dialog.setProgress(percent[0]);
+            }
+
+            @Override
+            protected void onPostExecute(Integer result) {
+                if (dialog.isShowing()) {
+                    dialog.dismiss();
+                }
+                AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
+                if (result == BackupUtils.STATE_SD_CARD_UNMOUONTED) {
+                    builder.setTitle(NotesListActivity.this
+                            .getString(R.string.failed_sdcard_export));
+                    builder.setMessage(NotesListActivity.this
+                            .getString(R.string.error_sdcard_unmounted));
+                } else if (result == BackupUtils.STATE_SUCCESS) {
+                    builder.setTitle(NotesListActivity.this
+                            .getString(R.string.success_sdcard_export));
+                    builder.setMessage(NotesListActivity.this.getString(
+                            R.string.format_backup_file_location, backup.getBackupFileName(),
+                            backup.getBackupFileDir()));
+                } else {
+                    builder.setTitle(NotesListActivity.this
+                            .getString(R.string.failed_sdcard_export));
+                    builder.setMessage(NotesListActivity.this
+                            .getString(R.string.error_sdcard_export));
+                }
+                builder.setPositiveButton(android.R.string.ok, null);
+                builder.show();
+            }
+
+        }.execute();
+    }
     //判断是否正在同步
     private boolean isSyncMode() {
         return NotesPreferenceActivity.getSyncAccountName(this).trim().length() > 0;
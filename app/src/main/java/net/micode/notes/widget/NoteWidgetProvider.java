@@ -21,11 +21,11 @@ import android.appwidget.AppWidgetProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.util.Log;
 import android.widget.RemoteViews;
 
 import net.micode.notes.R;
+import net.micode.notes.data.NoteCache;
+import net.micode.notes.data.NoteCache.NoteRecord;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.tool.ResourceParser;
@@ -36,17 +36,7 @@ import net.micode.notes.ui.NotesListActivity;
  * 继承自AppWidgetProvider类，创建桌面小部件
  */
 public abstract class NoteWidgetProvider extends AppWidgetProvider {
-    public static final String [] PROJECTION = new String [] {
-        NoteColumns.ID,
-        NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
-    };
-
-    public static final int COLUMN_ID           = 0;
-    public static final int COLUMN_BG_COLOR_ID  = 1;
-    public static final int COLUMN_SNIPPET      = 2;
-
-    private static final String TAG = "NoteWidgetProvider";
+    public static final String WIDGET_SELECTION = NoteColumns.WIDGET_ID + "=?";
 
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
@@ -55,19 +45,11 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
         for (int i = 0; i < appWidgetIds.length; i++) {
             context.getContentResolver().update(Notes.CONTENT_NOTE_URI,
                     values,
-                    NoteColumns.WIDGET_ID + "=?",
+                    WIDGET_SELECTION,
                     new String[] { String.valueOf(appWidgetIds[i])});
         }
     }
 
-    private Cursor getNoteWidgetInfo(Context context, int widgetId) {
-        return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
-                null);
-    }
-
     protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         update(context, appWidgetManager, appWidgetIds, false);
     }
@@ -83,26 +65,18 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
                 intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetIds[i]);
                 intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
 
-                Cursor c = getNoteWidgetInfo(context, appWidgetIds[i]);
-                if (c != null && c.moveToFirst()) {
-                    if (c.getCount() > 1) {
-                        Log.e(TAG, "Multiple message with same widget id:" + appWidgetIds[i]);
-                        c.close();
-                        return;
-                    }
-                    snippet = c.getString(COLUMN_SNIPPET);
-                    bgId = c.getInt(COLUMN_BG_COLOR_ID);
-                    intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID));
+                // 小部件频繁刷新，从便签缓存中读取
+                NoteRecord note = NoteCache.getInstance(context).getNoteByWidgetId(appWidgetIds[i]);
+                if (note != null) {
+                    snippet = note.getSnippet();
+                    bgId = note.getBgColorId();
+                    intent.putExtra(Intent.EXTRA_UID, note.getId());
                     intent.setAction(Intent.ACTION_VIEW);
                 } else {
                     snippet = context.getResources().getString(R.string.widget_havenot_content);
                     intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
                 }
 
-                if (c != null) {
-                    c.close();
-                }
-
                 RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
                 rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId));
                 intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId);